@@ -2,13 +2,11 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Random;
-import java.util.Set;
-import java.util.Map.Entry;
-import java.math.*;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -17,37 +15,113 @@ import java.math.*;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool which check that the transaction has the appropriate
- * locks to read/write the page. (Note: We do not cover transactions in CS 222 @ UCI )
+ * locks to read/write the page.  Locks are page-level strict two-phase
+ * locks kept by a {@link LockManager}: READ_ONLY takes a shared lock,
+ * READ_WRITE an exclusive one, and all of a transaction's locks are
+ * released by {@link #transactionComplete}.  Callers that pass a null
+ * TransactionId may read pages without locking; changing a page needs a
+ * transaction, which the page records as its dirtier.
+ * <p>
+ * The pool is safe for concurrent use without a global monitor.  Pages live
+ * in a ConcurrentHashMap, so a hit is a lock-free lookup (plus whatever the
+ * replacement policy does on a hit).  Loading, flushing and evicting a page
+ * synchronize on one of LOCK_STRIPES stripe objects chosen by the PageId's
+ * hash, so misses on different pages read from disk in parallel.
+ * <p>
+ * Every page handed out by {@link #getPage} or {@link #forcePage} is pinned
+ * and must be released with {@link #unpinPage} once the caller is done with
+ * it.  Pinned pages are never chosen for eviction, so an operator can keep
+ * working on a page without another thread's miss writing it out and
+ * dropping it underneath.
  */
 public class BufferPool {
-    /** Bytes per page, including header. */
+    /** Bytes per page, including header, unless the file says otherwise. */
     public static final int PAGE_SIZE = 4096;
+    /** Largest page size a file may use; sizes are powers of two from PAGE_SIZE up. */
+    public static final int MAX_PAGE_SIZE = 65536;
 
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    /** Number of stripe locks that serialize loads and evictions of a page. */
+    static final int LOCK_STRIPES = 64;
+    /** How many times a miss retries before giving up on finding a victim. */
+    static final int EVICTION_RETRIES = 1000;
     
-    private HashMap<Page,Date> pageMap;
-    private HashMap<PageId,Page> pageIdMap;
-    private HashMap<PageId, Boolean> dirtyPageMap;
-    private int numPagesStored = 0;
-    int indexPageCounter;
+    /** A cached page and the number of callers that currently pin it. */
+    private static class Frame {
+        volatile Page page;
+        // > 0 pinned, 0 evictable, -1 claimed by an eviction in progress;
+        // guarded by the frame's own monitor
+        int pins;
+        // loaded by read-ahead and not requested yet
+        boolean prefetched;
+
+        Frame(Page page) {
+            this.page = page;
+        }
+    }
+
+    private ConcurrentHashMap<PageId,Frame> frames;
+    private ReplacementPolicy policy;
+    private LockManager lockManager;
+    private ReadAhead readAhead;
+    private Object[] stripes;
+    // bumped whenever a page of the stripe is written or discarded, so a
+    // read-ahead batch can tell that what it read from disk went stale
+    private AtomicLongArray stripeWrites;
+    // frames that are cached or reserved by an in-flight load
+    private AtomicInteger numPagesStored;
+    AtomicInteger indexPageCounter;
     
     private int numPages;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Checks that size is a page size a file may use: a power of two
+     * between PAGE_SIZE and MAX_PAGE_SIZE.
+     *
+     * @throws IllegalArgumentException if it is not
+     */
+    public static void checkPageSize(int size) {
+    	if(size < PAGE_SIZE || size > MAX_PAGE_SIZE || Integer.bitCount(size) != 1)
+    		throw new IllegalArgumentException("Unsupported page size " + size
+    				+ ", must be a power of two from " + PAGE_SIZE + " to " + MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting with
+     * the CLOCK replacement policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+    	this(numPages, new ClockPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * given policy to choose which page to evict.
+     *
+     * @param numPages maximum number of pages in this buffer pool.  Files
+     *   may use different page sizes, so this bounds the number of pages,
+     *   not the number of bytes.
+     * @param policy the replacement policy, e.g. {@link ClockPolicy}, {@link LRUPolicy}
+     *   or the scan resistant {@link TwoQueuePolicy}. It must be thread safe.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
     	this.numPages = numPages;
-    	pageMap = new HashMap<Page,Date>();
-    	pageIdMap = new HashMap<PageId,Page>();
-    	dirtyPageMap = new HashMap<PageId, Boolean>();
-    	this.numPagesStored = 0;
-    	this.indexPageCounter = 0;
+    	this.policy = policy;
+    	frames = new ConcurrentHashMap<PageId,Frame>(numPages);
+    	stripes = new Object[LOCK_STRIPES];
+    	for(int i=0; i<stripes.length; i++)
+    		stripes[i] = new Object();
+    	stripeWrites = new AtomicLongArray(LOCK_STRIPES);
+    	this.numPagesStored = new AtomicInteger(0);
+    	this.indexPageCounter = new AtomicInteger(0);
+    	this.lockManager = new LockManager();
+    	this.readAhead = new ReadAhead(this, numPages);
     }
 
     /**
@@ -60,63 +134,196 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The returned page is pinned; call {@link #unpinPage} when done with it.
      *
-     * @param tid the ID of the transaction requesting the page
+     * @param tid the ID of the transaction requesting the page, or null to
+     *     read it without a lock
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
+     * @throws DbException if tid is null and perm is READ_WRITE
      */
-    public synchronized Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
 
         if (pid != null) {
-    		indexPageCounter++;
+    		indexPageCounter.incrementAndGet();
     	}
+        if(tid==null && perm==Permissions.READ_WRITE)
+        	throw new DbException("A page can only be changed by a transaction");
+        if(tid!=null)
+        	lockManager.acquire(tid, pid, perm);
     	
-        Page gotPage = pageIdMap.get(pid);
-        if(gotPage!=null){
-        	return gotPage;
-        }
-        if(this.numPagesStored>this.numPages){
-        	evictPage();
+        Frame frame = frames.get(pid);
+        if(frame!=null && pin(pid, frame)){
+        	policy.pageAccessed(pid);
+        	readAhead.accessed(pid, true, takePrefetched(frame));
+        	return frame.page;
         }
-        
-        Page pageFromDisk = null;
-        DbFile dbFile = Database.getCatalog().getDbFile(pid.getTableId());
-        if(dbFile!=null){
-        	pageFromDisk = dbFile.readPage(pid);
-        	if(pageFromDisk!=null){
-        		pageMap.put(pageFromDisk, new Date());
-        		pageIdMap.put(pid, pageFromDisk);//pageFromDisk.getId(), pageFromDisk);
-        		numPagesStored++;
-                gotPage = pageIdMap.get(pid);
+
+        // reserve a frame before taking the stripe lock: eviction locks the
+        // victim's stripe, and a thread must never hold two stripes at once
+        reserveFrame();
+        Page gotPage = null;
+        boolean loaded = false;
+        boolean hit = false;
+        try {
+        	synchronized (stripeFor(pid)) {
+        		frame = frames.get(pid);
+        		if(frame!=null && pin(pid, frame)){
+        			// another thread loaded it while we were waiting
+        			policy.pageAccessed(pid);
+        			gotPage = frame.page;
+        			hit = true;
+        		}
+        		else{
+        			DbFile dbFile = Database.getCatalog().getDbFile(pid.getTableId());
+        			if(dbFile!=null){
+        				gotPage = dbFile.readPage(pid);
+        				if(gotPage!=null){
+        					addPinnedFrame(pid, gotPage);
+        					loaded = true;
+        				}
+        			}
+        		}
         	}
+        } finally {
+        	if(!loaded)
+        		numPagesStored.decrementAndGet();
         }
-        //Set<PageId> pageList = pageIdMap.keySet();
-    	//Iterator<PageId> iter = pageList.iterator();
-    	//while(iter.hasNext())
-    		//System.out.println(iter.next().toString());
-        return pageFromDisk;
+        if(gotPage!=null)
+        	readAhead.accessed(pid, hit, hit && takePrefetched(frame));
+        return gotPage;
     }
-    
-    public void forcePage(Page newPage,TransactionId tid){
-    	if(this.numPagesStored>=this.numPages){
+
+    /**
+     * Loads up to count pages of file starting at page first into the pool
+     * without pinning or locking them, for {@link ReadAhead}.  Pages that are
+     * already cached are left alone, and so is any page whose stripe saw a
+     * write while the batch was being read, since the disk copy may be older
+     * than the one that was written.
+     *
+     * @return the number of pages added
+     */
+    int prefetchPages(HeapFile file, int first, int count) {
+    	int end = Math.min(first + count, file.numPages());
+    	while(first < end && frames.containsKey(new HeapPageId(file.getId(), first)))
+    		first++;
+    	if(first >= end)
+    		return 0;
+    	long[] stamps = new long[LOCK_STRIPES];
+    	for(int i=0; i<LOCK_STRIPES; i++)
+    		stamps[i] = stripeWrites.get(i);
+    	ArrayList<Page> pages;
+    	try {
+    		pages = file.readPages(first, end - first);
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    		return 0;
+    	}
+    	int added = 0;
+    	for(int i=0; i<pages.size(); i++){
+    		PageId pid = pages.get(i).getId();
+    		if(frames.containsKey(pid))
+    			continue;
     		try {
-				evictPage();
-			} catch (DbException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+    			reserveFrame();
+    		} catch (DbException e) {
+    			// the pool is pinned full; the scan will read the rest itself
+    			break;
+    		}
+    		boolean kept = false;
+    		int stripe = stripeIndex(pid);
+    		synchronized (stripes[stripe]) {
+    			if(!frames.containsKey(pid) && stripeWrites.get(stripe)==stamps[stripe]){
+    				Frame frame = new Frame(pages.get(i));
+    				frame.prefetched = true;
+    				frames.put(pid, frame);
+    				policy.pageAdded(pid);
+    				kept = true;
+    			}
+    		}
+    		if(kept)
+    			added++;
+    		else
+    			numPagesStored.decrementAndGet();
     	}
-    	if(newPage!=null){
-    		pageIdMap.put(newPage.getId(), newPage);
-    		pageMap.put(newPage, new Date());
-    		dirtyPage(newPage, true, tid);
-    		numPagesStored++;
+    	return added;
+    }
+    
+    /**
+     * Places a page that was created in memory (e.g. a freshly appended
+     * HeapPage) into the buffer pool and marks it dirty, so that it reaches
+     * disk when it is flushed or evicted.  Like getPage, this pins the page;
+     * call {@link #unpinPage} when done with it.  tid gets an exclusive lock
+     * on the page.
+     *
+     * @throws DbException if every page in the buffer pool is pinned, or
+     *     if tid is null
+     */
+    public void forcePage(Page newPage,TransactionId tid)
+    	throws TransactionAbortedException, DbException {
+    	if(newPage==null)
+    		return;
+    	if(tid==null)
+    		throw new DbException("A page can only be changed by a transaction");
+    	PageId pid = newPage.getId();
+    	lockManager.acquire(tid, pid, Permissions.READ_WRITE);
+    	boolean reserved = false;
+    	while(true){
+    		if(!reserved && !frames.containsKey(pid)){
+    			reserveFrame();
+    			reserved = true;
+    		}
+    		synchronized (stripeFor(pid)) {
+    			Frame frame = frames.get(pid);
+    			if(frame==null){
+    				// evicted since we looked; claim a frame for it first
+    				if(!reserved)
+    					continue;
+    				addPinnedFrame(pid, newPage);
+    			}
+    			else{
+    				if(reserved)
+    					numPagesStored.decrementAndGet();
+    				// frames under our stripe cannot be claimed by an eviction
+    				frame.page = newPage;
+    				pin(pid, frame);
+    				policy.pageAccessed(pid);
+    			}
+    			dirtyPage(newPage, true, tid);
+    			return;
+    		}
+    	}
+    }
+
+    /**
+     * Releases one pin on a page obtained from {@link #getPage} or
+     * {@link #forcePage}.  Once the last pin is gone the page may be evicted.
+     *
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(PageId pid) {
+    	Frame frame = frames.get(pid);
+    	if(frame==null)
+    		return;
+    	synchronized (frame) {
+    		if(frame.pins > 0 && --frame.pins == 0)
+    			policy.setEvictable(pid, true);
+    	}
+    }
+
+    /** Return true if the specified page is cached and pinned by at least one caller */
+    public boolean isPinned(PageId pid) {
+    	Frame frame = frames.get(pid);
+    	if(frame==null)
+    		return false;
+    	synchronized (frame) {
+    		return frame.pins > 0;
     	}
     }
     
     public void dirtyPage(Page page, boolean bool, TransactionId tid) {
-    	dirtyPageMap.put(page.getId(), new Boolean(bool));
     	page.markDirty(bool, tid);
     }
 
@@ -129,9 +336,8 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      * @param pid the ID of the page to unlock
      */
-    public synchronized void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for Phase 1 (in CS222 @UCI)
+    public void releasePage(TransactionId tid, PageId pid) {
+    	lockManager.release(tid, pid);
     }
 
     /**
@@ -139,36 +345,85 @@ public class BufferPool {
      *
      * @param tid the ID of the transaction requesting the unlock
      */
-    public synchronized void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for Phase 1 (in CS222 @UCI)
+    public void transactionComplete(TransactionId tid) throws IOException {
+    	transactionComplete(tid, true);
+    }
+
+    /** Returns the read-ahead stage, e.g. to switch it off or read its counters */
+    public ReadAhead getReadAhead() {
+    	return readAhead;
+    }
+
+    /** Returns the lock manager, e.g. to read its deadlock counters */
+    public LockManager getLockManager() {
+    	return lockManager;
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
-    public  synchronized boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for Phase 1 (in CS222 @UCI)
-        return false;
+    public boolean holdsLock(TransactionId tid, PageId p) {
+    	return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * A commit logs the after image of every page the transaction dirtied,
+     * then its COMMIT record, and waits for one force of the log (shared
+     * with concurrent commits) before writing the pages themselves.  An
+     * abort drops the transaction's dirty pages from the pool and lets the
+     * log roll back the ones that were evicted (stolen) before it ended.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
-    public  synchronized void transactionComplete(TransactionId tid, boolean commit)
+    public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for Phase 1 (in CS222 @UCI)
+    	LogFile log = Database.getLogFile();
+    	try {
+    		if(commit){
+    			ArrayList<PageId> dirtied = new ArrayList<PageId>();
+    			Iterator<Frame> it = frames.values().iterator();
+    			while(it.hasNext()){
+    				Page page = it.next().page;
+    				if(tid.equals(page.isDirty())){
+    					if(log!=null)
+    						log.logWrite(tid, page.getBeforeImage(), page);
+    					dirtied.add(page.getId());
+    				}
+    			}
+    			if(log!=null)
+    				log.logCommit(tid);
+    			for(int i=0; i<dirtied.size(); i++)
+    				flushPage(dirtied.get(i), false);
+    			// what the transaction wrote is now what later ones roll back to
+    			Iterator<PageId> locked = lockManager.pagesLockedBy(tid).iterator();
+    			while(locked.hasNext()){
+    				PageId pid = locked.next();
+    				Frame frame = frames.get(pid);
+    				if(frame!=null && lockManager.holdsExclusive(tid, pid))
+    					frame.page.setBeforeImage();
+    			}
+    		}
+    		else{
+    			Iterator<Frame> it = frames.values().iterator();
+    			while(it.hasNext()){
+    				Page page = it.next().page;
+    				if(tid.equals(page.isDirty()))
+    					discardPage(page.getId());
+    			}
+    			if(log!=null)
+    				log.logAbort(tid);
+    		}
+    	} finally {
+    		lockManager.releaseAll(tid);
+    	}
     }
 
     /**
      * Add a tuple to the specified table behalf of transaction tid.  Will
-     * acquire a write lock on the page the tuple is added to(Lock
-     * acquisition is not needed for Phase 1 (in CS222 @UCI) ). May block if the lock cannot
-     * be acquired.
+     * acquire a write lock on the page the tuple is added to. May block if
+     * the lock cannot be acquired.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and updates cached versions of any pages that have
@@ -178,7 +433,7 @@ public class BufferPool {
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
      */
-    public synchronized void insertTuple(TransactionId tid, int tableId, Tuple t)
+    public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         DbFile file = Database.getCatalog().getDbFile(tableId);
         ArrayList<Page> dirtyPages = file.addTuple(tid, t);
@@ -203,20 +458,12 @@ public class BufferPool {
      * @param tid the transaction adding the tuple.
      * @param t the tuple to add
      */
-    public synchronized void deleteTuple(TransactionId tid, Tuple t)
+    public void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, TransactionAbortedException {
-        RecordId recId = t.getRecordId();
-        Page pageToDeleteFrom = pageIdMap.get(recId.getPageId());
-        if(pageToDeleteFrom != null){
-        	if(pageToDeleteFrom instanceof HeapPage) {
-            	((HeapPage) pageToDeleteFrom).deleteTuple(t);
-            	pageToDeleteFrom.markDirty(true, tid);
-        	}
-        	else if(pageToDeleteFrom instanceof IndexPage) {
-        		((IndexPage) pageToDeleteFrom).deleteTuple(t);
-            	pageToDeleteFrom.markDirty(true, tid);
-        	}
-        }
+        PageId pid = t.getRecordId().getPageId();
+        DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+        Page dirt = file.deleteTuple(tid, t);
+        dirtyPage(dirt, true, tid);
 
     }
 
@@ -225,36 +472,11 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
-    	Set<PageId> dirtyPageList = dirtyPageMap.keySet();
-    	PageId pid = null;
-    	Object[] pids =  dirtyPageList.toArray();
-    	for(int i=0; i<pids.length; i++){
-    		pid = (PageId) pids[i];
-    		flushPage(pid);
+    public void flushAllPages() throws IOException {
+    	Iterator<PageId> pids = frames.keySet().iterator();
+    	while(pids.hasNext()){
+    		flushPage(pids.next());
     	}
-/*    	while(dirtyPageItr.hasNext()) {
-    		pid = dirtyPageItr.next();
-    		flushPage(pid);
-    	}	
-/*    	Set<PageId> allPageList = pageIdMap.keySet();
-    	Iterator<PageId> allPageItr = allPageList.iterator();
-    	Page page = null;
-    	TransactionId tid = new TransactionId();
-    	while(allPageItr.hasNext()){
-    		PageId pageId = allPageItr.next();
-    		try {
-				page = getPage(tid, pageId, Permissions.READ_WRITE);
-			} catch (TransactionAbortedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (DbException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			if(page.isDirty()!=null)
-				flushPage(pageId);
-    	}*/
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -262,67 +484,173 @@ public class BufferPool {
         buffer pool doesn't keep a rolled back page in its
         cache.
     */
-    public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // not necessary for Phase 1 (in CS222 @UCI)
+    public void discardPage(PageId pid) {
+    	// what replaces the page may have more room than it had
+    	if(pid instanceof HeapPageId){
+    		try {
+    			DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+    			if(file instanceof HeapFile)
+    				((HeapFile)file).pageMayHaveSpace(pid.pageno());
+    		} catch (NoSuchElementException e) {
+    			// the table is gone, nothing to update
+    		}
+    	}
+    	synchronized (stripeFor(pid)) {
+    		stripeWrites.incrementAndGet(stripeIndex(pid));
+    		if(frames.remove(pid)!=null){
+    			policy.pageRemoved(pid);
+    			numPagesStored.decrementAndGet();
+    		}
+    	}
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk if it is dirty. The page stays cached.
+     * Following the write-ahead rule, the page's UPDATE record is logged
+     * and the log forced before the page is written.
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
-    	Page flushedPage = pageIdMap.get(pid);
-    	if(flushedPage!=null){
-    		flushedPage.markDirty(false, null);
-    		DbFile dbFile = Database.getCatalog().getDbFile(pid.getTableId());
-    		dbFile.writePage(flushedPage);
-    		pageIdMap.remove(pid);
-    		pageMap.remove(flushedPage);
-    		dirtyPageMap.remove(pid);
-    		this.numPagesStored--;
+    private void flushPage(PageId pid) throws IOException {
+    	flushPage(pid, true);
+    }
+
+    /**
+     * Flushes a page if it is dirty.  Pass log=false only when the page's
+     * current contents are already in the durable log.
+     */
+    private void flushPage(PageId pid, boolean log) throws IOException {
+    	synchronized (stripeFor(pid)) {
+    		Frame frame = frames.get(pid);
+    		Page flushedPage = frame==null ? null : frame.page;
+    		if(flushedPage!=null && flushedPage.isDirty()!=null){
+    			LogFile logFile = Database.getLogFile();
+    			if(log && logFile!=null){
+    				logFile.logWrite(flushedPage.isDirty(), flushedPage.getBeforeImage(), flushedPage);
+    				logFile.force();
+    			}
+    			DbFile dbFile = Database.getCatalog().getDbFile(pid.getTableId());
+    			stripeWrites.incrementAndGet(stripeIndex(pid));
+    			dbFile.writePage(flushedPage);
+    			flushedPage.markDirty(false, null);
+    			if(logFile!=null)
+    				logFile.pageWritten(pid);
+    		}
     	}
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for Phase 1 (in CS222 @UCI)
+    public void flushPages(TransactionId tid) throws IOException {
+    	Iterator<Frame> it = frames.values().iterator();
+    	while(it.hasNext()){
+    		Page page = it.next().page;
+    		if(tid.equals(page.isDirty()))
+    			flushPage(page.getId());
+    	}
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the replacement policy among unpinned pages.
+     *
+     * @return false if the policy had no page to offer
      */
-    private  synchronized void evictPage() throws DbException {
-    	
-    	Iterator<Entry<Page, Date>> pageSetItr = pageMap.entrySet().iterator();
-    	Page evPage = null;
-    	Date evDate = null;
-    	if(pageSetItr.hasNext()){
-    		Entry<Page, Date> nextEntry = pageSetItr.next();
-    		evPage = nextEntry.getKey();
-    		evDate = nextEntry.getValue();
-    	}
-    	while(pageSetItr.hasNext()){
-    		Entry<Page, Date> nextEntry = pageSetItr.next();
-    		Date newDate = nextEntry.getValue();
-    		Page newPage = nextEntry.getKey();
-    		if(newDate.before(evDate)){
-    			evDate = newDate;
-    			evPage = newPage;
+    private boolean evictPage() throws DbException {
+    	PageId victim = policy.pickVictim();
+    	if(victim==null)
+    		return false;
+    	synchronized (stripeFor(victim)) {
+    		Frame frame = frames.get(victim);
+    		if(frame==null)
+    			return true;
+    		synchronized (frame) {
+    			if(frame.pins != 0){
+    				// pinned after the policy offered it; hand it back
+    				policy.victimDeclined(victim);
+    				policy.setEvictable(victim, false);
+    				return true;
+    			}
+    			frame.pins = -1;
     		}
+    		try {
+    			flushPage(victim);
+    		} catch (IOException e) {
+    			synchronized (frame) {
+    				frame.pins = 0;
+    				policy.victimDeclined(victim);
+    			}
+    			throw new DbException("Could not flush evicted page: " + e.getMessage());
+    		}
+    		frames.remove(victim);
+    		numPagesStored.decrementAndGet();
+    		if(frame.prefetched)
+    			readAhead.wasted(victim);
     	}
-    	try {
-    		if(evPage!=null){
-    			flushPage(evPage.getId());
+    	return true;
+    }
+
+    /**
+     * Claims a frame for a page that is about to be added, evicting pages
+     * until one is free.  Must not be called while holding a stripe lock.
+     */
+    private void reserveFrame() throws DbException {
+    	int retries = 0;
+    	while(true){
+    		int stored = numPagesStored.get();
+    		if(stored < numPages){
+    			if(numPagesStored.compareAndSet(stored, stored+1))
+    				return;
     		}
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-    	
+    		else if(!evictPage()){
+    			// every frame is pinned or being loaded by another thread
+    			if(++retries > EVICTION_RETRIES)
+    				throw new DbException("All pages in the buffer pool are pinned");
+    			Thread.yield();
+    		}
+    	}
+    }
+
+    /**
+     * Pins a cached frame for the caller.
+     * @return false if the frame is being evicted and must be reloaded
+     */
+    private boolean pin(PageId pid, Frame frame) {
+    	synchronized (frame) {
+    		if(frame.pins < 0)
+    			return false;
+    		if(frame.pins++ == 0)
+    			policy.setEvictable(pid, false);
+    		return true;
+    	}
+    }
+
+    /** Clears and returns the frame's prefetched flag. */
+    private boolean takePrefetched(Frame frame) {
+    	synchronized (frame) {
+    		boolean prefetched = frame.prefetched;
+    		frame.prefetched = false;
+    		return prefetched;
+    	}
+    }
+
+    /** Caches a page pinned once by the caller.  Call with pid's stripe held. */
+    private void addPinnedFrame(PageId pid, Page page) {
+    	Frame frame = new Frame(page);
+    	synchronized (frame) {
+    		frame.pins = 1;
+    		frames.put(pid, frame);
+    		policy.pageAdded(pid);
+    		policy.setEvictable(pid, false);
+    	}
+    }
+
+    private Object stripeFor(PageId pid) {
+    	return stripes[stripeIndex(pid)];
+    }
+
+    private int stripeIndex(PageId pid) {
+    	return (pid.hashCode() & 0x7fffffff) % stripes.length;
     }
 
 }
@@ -132,10 +132,29 @@ public class Catalog {
     	return dbf;
     }
 
+    /**
+     * Returns the indexes built on the specified table, as added with
+     * addIndex; empty if it has none.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public ArrayList<IndexFile> getIndexes(int tableid) {
+    	ArrayList<IndexFile> indexes = new ArrayList<IndexFile>();
+    	Iterator<Map.Entry<DbFile, index>> it = IxFiletoIndex.entrySet().iterator();
+    	while(it.hasNext()){
+    		Map.Entry<DbFile, index> e = it.next();
+    		DbFile table = NameToFile.get(e.getValue().tableName);
+    		if(table != null && table.getId() == tableid && e.getKey() instanceof IndexFile)
+    			indexes.add((IndexFile)e.getKey());
+    	}
+    	return indexes;
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         NameToFile.clear();
         IDToFile.clear();
+        IxFiletoIndex.clear();
     }
     
     /**
@@ -148,7 +167,7 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
 
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [pagesize N]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -170,10 +189,26 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(name + ".dat"), t);
+                // optional page size after the field list, e.g. "pagesize 16384"
+                int pageSize = BufferPool.PAGE_SIZE;
+                String[] opts = line.substring(line.indexOf(")") + 1).trim().split("\\s+");
+                if (opts.length == 2 && opts[0].toLowerCase().equals("pagesize")) {
+                    try {
+                        pageSize = Integer.parseInt(opts[1]);
+                        BufferPool.checkPageSize(pageSize);
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Invalid page size in catalog entry : " + line);
+                        System.exit(0);
+                    }
+                }
+                HeapFile tabHf = new HeapFile(new File(name + ".dat"), t, pageSize);
                 addTable(tabHf,name);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
+            // the tables the log refers to are known now, so it can be replayed
+            LogFile log = Database.getLogFile();
+            if (log != null)
+                log.recoverOnStartup();
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
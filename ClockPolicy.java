@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ClockPolicy approximates LRU with the CLOCK (second chance) algorithm.
+ * Frames sit on a circular list with a reference bit that is set on every
+ * hit.  To pick a victim the clock hand sweeps the list, clearing set bits,
+ * until it finds a frame whose bit is already clear.  A hit only sets a bit,
+ * and a sweep visits each frame at most twice.  Frames that are not
+ * evictable (pinned pages) are stepped over without touching their bit.
+ * <p>
+ * A hit is lock-free: it looks the frame up in a ConcurrentHashMap and sets
+ * a volatile bit.  Adding, removing and sweeping synchronize on the policy.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private static class Frame {
+        PageId pid;
+        volatile boolean referenced;
+        boolean evictable = true;
+        Frame prev;
+        Frame next;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private ConcurrentHashMap<PageId, Frame> frames;
+    private Frame hand;
+
+    public ClockPolicy() {
+        frames = new ConcurrentHashMap<PageId, Frame>();
+        hand = null;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (frames.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        Frame f = new Frame(pid);
+        frames.put(pid, f);
+        if (hand == null) {
+            f.prev = f;
+            f.next = f;
+            hand = f;
+        } else {
+            // insert just behind the hand, i.e. the last frame it will visit
+            f.next = hand;
+            f.prev = hand.prev;
+            hand.prev.next = f;
+            hand.prev = f;
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        Frame f = frames.get(pid);
+        if (f != null)
+            f.referenced = true;
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Frame f = frames.remove(pid);
+        if (f != null)
+            unlink(f);
+    }
+
+    public synchronized void setEvictable(PageId pid, boolean evictable) {
+        Frame f = frames.get(pid);
+        if (f != null)
+            f.evictable = evictable;
+    }
+
+    public synchronized void victimDeclined(PageId pid) {
+        // pickVictim dropped it, so it comes back unreferenced
+        pageAdded(pid);
+    }
+
+    public synchronized PageId pickVictim() {
+        if (hand == null)
+            return null;
+        // two full turns clear every bit, so a longer sweep means that
+        // every frame is pinned
+        int limit = 2 * frames.size() + 1;
+        while (!hand.evictable || hand.referenced) {
+            if (limit-- == 0)
+                return null;
+            if (hand.evictable)
+                hand.referenced = false;
+            hand = hand.next;
+        }
+        Frame victim = hand;
+        frames.remove(victim.pid);
+        unlink(victim);
+        return victim.pid;
+    }
+
+    private void unlink(Frame f) {
+        if (f.next == f) {
+            hand = null;
+        } else {
+            f.prev.next = f.next;
+            f.next.prev = f.prev;
+            if (hand == f)
+                hand = f.next;
+        }
+        f.prev = null;
+        f.next = null;
+    }
+}
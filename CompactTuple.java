@@ -0,0 +1,160 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * CompactTuple is a Tuple that keeps its values in primitive form rather
+ * than as Field objects: ints in an int[], and strings as slices of one
+ * byte[] in the same format a page stores them (a 4-byte length followed
+ * by the bytes).  A row of three ints costs one int[] instead of three
+ * IntFields and a Field[].
+ * <p>
+ * Code that knows the schema can read ints with {@link #getInt} without
+ * allocating anything, and strings with {@link #getString}.  Everything
+ * else keeps working through {@link #getField}, which builds the Field the
+ * first time a column is asked for and hands out the same object
+ * afterwards.
+ */
+public class CompactTuple extends Tuple {
+
+	private TupleDesc td;
+	// int values by field index; unused for string fields
+	private int[] ints;
+	// the tuple serialized; only string fields are kept up to date in it.
+	// null if the schema has no strings
+	private byte[] row;
+	// Fields handed out by getField, built on first use
+	private Field[] cache;
+
+	/**
+	 * Creates an empty compact tuple with the specified schema.
+	 *
+	 * @param td the schema of this tuple
+	 */
+	public CompactTuple(TupleDesc td) {
+		super(td, true);
+		this.td = td;
+		this.ints = new int[td.numFields()];
+		if(hasStrings(td))
+			this.row = new byte[td.getSize()];
+	}
+
+	/**
+	 * Creates a compact tuple from a serialized tuple, e.g. a slot of a
+	 * page.  The bytes are copied, so data may change afterwards.
+	 *
+	 * @param td the schema of this tuple
+	 * @param data bytes holding the serialized tuple
+	 * @param offset where the tuple starts in data
+	 */
+	public CompactTuple(TupleDesc td, byte[] data, int offset) {
+		this(td);
+		for(int i=0; i<ints.length; i++){
+			if(td.getType(i) == Type.INT_TYPE)
+				ints[i] = Type.readInt(data, offset + td.getOffset(i));
+		}
+		if(row != null)
+			System.arraycopy(data, offset, row, 0, row.length);
+	}
+
+	/**
+	 * @return the value of the ith field, which must be an int
+	 */
+	public int getInt(int i) {
+		if(td.getType(i) != Type.INT_TYPE)
+			throw new IllegalArgumentException("Field " + i + " is not an int");
+		return ints[i];
+	}
+
+	/**
+	 * Sets the ith field, which must be an int, without creating a Field.
+	 */
+	public void setInt(int i, int value) {
+		if(td.getType(i) != Type.INT_TYPE)
+			throw new IllegalArgumentException("Field " + i + " is not an int");
+		ints[i] = value;
+		if(cache != null)
+			cache[i] = null;
+	}
+
+	/**
+	 * @return the value of the ith field, which must be a string
+	 */
+	public String getString(int i) {
+		if(td.getType(i) != Type.STRING_TYPE)
+			throw new IllegalArgumentException("Field " + i + " is not a string");
+		int off = td.getOffset(i);
+		return new String(row, off + 4, stringLength(off));
+	}
+
+	/**
+	 * Writes this tuple in its serialized form, as a page stores it, to
+	 * dest at offset.  Does not allocate.
+	 */
+	public void serialize(byte[] dest, int offset) {
+		if(row != null)
+			System.arraycopy(row, 0, dest, offset, row.length);
+		for(int i=0; i<ints.length; i++){
+			if(td.getType(i) == Type.INT_TYPE){
+				int off = offset + td.getOffset(i);
+				int v = ints[i];
+				dest[off] = (byte)(v >>> 24);
+				dest[off + 1] = (byte)(v >>> 16);
+				dest[off + 2] = (byte)(v >>> 8);
+				dest[off + 3] = (byte)v;
+			}
+		}
+	}
+
+	public void setField(int i, Field f) {
+		if(i >= ints.length)
+			return;
+		if(td.getType(i) == Type.INT_TYPE)
+			ints[i] = ((IntField)f).getValue();
+		else{
+			// store the string the way StringField.serialize writes it:
+			// the length, then the low byte of each char
+			String s = ((StringField)f).getValue();
+			int off = td.getOffset(i);
+			int len = Math.min(s.length(), Type.STRING_LEN);
+			row[off] = (byte)(len >>> 24);
+			row[off + 1] = (byte)(len >>> 16);
+			row[off + 2] = (byte)(len >>> 8);
+			row[off + 3] = (byte)len;
+			for(int j=0; j<len; j++)
+				row[off + 4 + j] = (byte)s.charAt(j);
+			Arrays.fill(row, off + 4 + len, off + 4 + Type.STRING_LEN, (byte)0);
+		}
+		if(cache == null)
+			cache = new Field[ints.length];
+		cache[i] = f;
+	}
+
+	public Field getField(int i) {
+		if(i >= ints.length)
+			throw new NoSuchElementException();
+		if(cache == null)
+			cache = new Field[ints.length];
+		Field f = cache[i];
+		if(f == null){
+			if(td.getType(i) == Type.INT_TYPE)
+				f = new IntField(ints[i]);
+			else
+				f = new StringField(getString(i), Type.STRING_LEN);
+			cache[i] = f;
+		}
+		return f;
+	}
+
+	private int stringLength(int off) {
+		return Math.max(0, Math.min(Type.readInt(row, off), Type.STRING_LEN));
+	}
+
+	private static boolean hasStrings(TupleDesc td) {
+		for(int i=0; i<td.numFields(); i++)
+			if(td.getType(i) == Type.STRING_TYPE)
+				return true;
+		return false;
+	}
+}
@@ -14,10 +14,24 @@ public class Database {
 	private static Database _instance = new Database();
     private final Catalog _catalog;
     private BufferPool _bufferpool; 
+    private LogFile _logfile;
+
+    private final static String LOGFILENAME = "log";
 
     private Database() {
     	_catalog = new Catalog();
     	_bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+    	try {
+    		_logfile = new LogFile(new File(LOGFILENAME), false);
+    	} catch (IOException e) {
+    		_logfile = null;
+    		e.printStackTrace();
+    	}
+    }
+
+    /** Return the log file of the static Database instance*/
+    public static LogFile getLogFile() {
+        return _instance._logfile;
     }
 
     /** Return the buffer pool of the static Database instance*/
@@ -38,11 +52,29 @@ public class Database {
         return _instance._bufferpool;
     }
 
-    //Dummy function so recovery code compiles;  not needed in labs 1-3
-    public static LogFile resetLogFile() throws IOException { return null; }
+    /** Method used for testing -- create a new instance of the
+        buffer pool that evicts with the given replacement policy
+    */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy policy) {
+        _instance._bufferpool = new BufferPool(pages, policy);
+        return _instance._bufferpool;
+    }
+
+    /** Method used for testing -- close the log and start a new, empty one */
+    public static LogFile resetLogFile() throws IOException {
+        if (_instance._logfile != null)
+            _instance._logfile.shutdown();
+        new File(LOGFILENAME).delete();
+        _instance._logfile = new LogFile(new File(LOGFILENAME), false);
+        return _instance._logfile;
+    }
 
-    //reset the database, used for unit tests only.
+    //reset the database, used for unit tests only.  The new, empty
+    //catalog cannot replay the old log, so the log starts over too.
     public static void reset() {
+    	if (_instance._logfile != null)
+    		_instance._logfile.shutdown();
+    	new File(LOGFILENAME).delete();
     	_instance = new Database();
     }
 
@@ -29,6 +29,22 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Forces the pages written with writePage out to stable storage.
+     * Used by checkpoints, which only forget a page once it is durable.
+     *
+     * @throws IOException if the file cannot be synced
+     */
+    public void sync() throws IOException;
+
+    /**
+     * Returns the size in bytes of the pages of this file.  Every page of a
+     * file has the same size, but different files may use different sizes.
+     *
+     * @see BufferPool#checkPageSize
+     */
+    public int getPageSize();
+
     /**
      * Adds the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
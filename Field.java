@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for values of fields in tuples in SimpleDB.
@@ -14,6 +15,14 @@ public interface Field {
      */
     void serialize(DataOutputStream dos) throws IOException;
 
+    /**
+     * Write the bytes representing this field to the specified buffer at
+     * its position, in the same format as serialize(DataOutputStream), and
+     * advance the position past them.
+     * @param buf The buffer to write to.
+     */
+    void serialize(ByteBuffer buf);
+
     /**
      * Compare the value of this field object to the passed in value.
      * @param op The operator
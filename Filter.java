@@ -11,6 +11,8 @@ public class Filter extends AbstractDbIterator {
     private Predicate p;
 	private DbIterator child;
 	private boolean opened;
+	// true while p is pushed into the child scan
+	private boolean pushed;
 
 	/**
      * Constructor accepts a predicate to apply and a child
@@ -32,6 +34,11 @@ public class Filter extends AbstractDbIterator {
     public void open()
         throws DbException, NoSuchElementException, TransactionAbortedException {
         opened = true;
+        // let a scan test the predicate on the raw pages while this Filter
+        // is open; the tuples it returns are still checked below, so this
+        // only saves work
+        if (!pushed && child instanceof SeqScan)
+            pushed = ((SeqScan) child).pushPredicate(p);
         child.open();
     }
 
@@ -47,6 +54,10 @@ public class Filter extends AbstractDbIterator {
         }
         opened = false;
         child.close();
+        // the scan belongs to the caller, so it is left as it was found
+        if (pushed)
+            ((SeqScan) child).removePredicate(p);
+        pushed = false;
      
     }
 
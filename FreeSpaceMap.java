@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile are full, so an insert
+ * can go straight to a page with room instead of fetching every page from
+ * the start of the file.  It is one bit per page: set means the page was
+ * full when last looked at, clear means it may have space.  A clear bit
+ * that is wrong only costs one page fetch, so anything that might free
+ * space (a delete, a rolled back page) clears the bit.
+ * <p>
+ * The map is kept in a small file next to the heap file (its name plus
+ * ".fsm") and written out when the heap file is synced or closed.  The
+ * first change after that deletes the saved copy, so a crash leaves no
+ * map rather than a stale one, and the map is then rebuilt as inserts
+ * find full pages.  A saved map is also ignored if the heap file changed
+ * after it was written.
+ */
+public class FreeSpaceMap {
+
+	private final File mapFile;
+	// bit i set: page i was full
+	private final BitSet full = new BitSet();
+	// no page below this one has its bit clear
+	private int firstFree;
+	// true once the map differs from the saved copy (or there is none)
+	private boolean changed;
+
+	/**
+	 * Loads the map of heapFile, or starts an empty one (every page may
+	 * have space) if it was not saved or is out of date.
+	 *
+	 * @param heapFile the file whose pages are tracked
+	 * @param numPages the number of pages heapFile has
+	 */
+	public FreeSpaceMap(File heapFile, int numPages) {
+		this.mapFile = new File(heapFile.getPath() + ".fsm");
+		this.changed = true;
+		if(!mapFile.exists())
+			return;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mapFile)));
+			try {
+				int pages = in.readInt();
+				long modified = in.readLong();
+				if(pages != numPages || modified != heapFile.lastModified())
+					return;
+				int words = in.readInt();
+				for(int w=0; w<words; w++){
+					long bits = in.readLong();
+					for(int b=0; b<64 && bits != 0; b++, bits >>>= 1)
+						if((bits & 1) != 0)
+							full.set(w*64 + b);
+				}
+				firstFree = full.nextClearBit(0);
+				changed = false;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// a damaged map is no worse than none
+			full.clear();
+			firstFree = 0;
+		}
+	}
+
+	/**
+	 * Returns the first page at or after from that may have space.  The
+	 * result can be past the end of the file if every page there is full.
+	 */
+	public synchronized int nextFree(int from) {
+		return full.nextClearBit(Math.max(from, firstFree));
+	}
+
+	/** Records that page pageNo has no empty slots. */
+	public synchronized void setFull(int pageNo) {
+		if(full.get(pageNo))
+			return;
+		change();
+		full.set(pageNo);
+		if(pageNo == firstFree)
+			firstFree = full.nextClearBit(pageNo);
+	}
+
+	/** Records that page pageNo may have empty slots. */
+	public synchronized void setFree(int pageNo) {
+		if(!full.get(pageNo))
+			return;
+		change();
+		full.clear(pageNo);
+		if(pageNo < firstFree)
+			firstFree = pageNo;
+	}
+
+	/**
+	 * Writes the map out if it changed since it was loaded or last saved.
+	 * Call once the heap file itself is on disk.
+	 *
+	 * @param heapFile the file whose pages are tracked
+	 * @param numPages the number of pages heapFile has
+	 */
+	public synchronized void save(File heapFile, int numPages) throws IOException {
+		if(!changed)
+			return;
+		File tmp = new File(mapFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			long[] words = new long[(numPages + 63) / 64];
+			for(int i=full.nextSetBit(0); i>=0 && i<numPages; i=full.nextSetBit(i+1))
+				words[i / 64] |= 1L << (i % 64);
+			out.writeInt(numPages);
+			out.writeLong(heapFile.lastModified());
+			out.writeInt(words.length);
+			for(int w=0; w<words.length; w++)
+				out.writeLong(words[w]);
+		} finally {
+			out.close();
+		}
+		if(!tmp.renameTo(mapFile)){
+			mapFile.delete();
+			if(!tmp.renameTo(mapFile))
+				throw new IOException("Could not write free space map " + mapFile);
+		}
+		changed = false;
+	}
+
+	// the saved copy goes as soon as the map no longer matches it
+	private void change() {
+		if(!changed){
+			changed = true;
+			mapFile.delete();
+		}
+	}
+}
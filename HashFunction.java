@@ -24,14 +24,15 @@ public class HashFunction {
 
     public static int linearhash(int value) {
         //return (coef * value + offset) % 10;
-    	return (primeMultiplier*value) % prime;
+    	// the product overflows, so fold negative remainders back into range
+    	return ((primeMultiplier*value) % prime + prime) % prime;
     }
     
     public static int linearhash(String value){
     	int sum  = 0;
     	for(int i=0; i<value.length(); i++)
     		sum += value.charAt(i);
-    	return (primeMultiplier*sum) % prime;
+    	return ((primeMultiplier*sum) % prime + prime) % prime;
     }
     
     static int getHash(Field f){
@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+
+/**
+ * HashJoin joins two children on the equality of one field of each, using
+ * a hash table in memory.  It reads the children side by side until one
+ * of them runs out; that one is the smaller, and its tuples go into the
+ * table keyed by their join field.  The other child is then probed
+ * against the table one tuple at a time, and output tuples are built as
+ * readNext asks for them.  As with Join, an output tuple has the fields
+ * of child1 followed by those of child2, whichever side was hashed.
+ * <p>
+ * Memory use is about twice the size of the smaller child.  Join uses this
+ * operator for predicates with Predicate.Op.EQUALS.
+ */
+public class HashJoin extends AbstractDbIterator {
+
+	private JoinPredicate pred;
+	private DbIterator child1;
+	private DbIterator child2;
+	private TupleDesc td;
+	// the tuples of the smaller child by join field
+	private HashMap<Field, ArrayList<Tuple>> table;
+	// true if child1 is in the table and child2 is probed
+	private boolean buildLeft;
+	// probe tuples read while looking for the smaller child; they are
+	// probed before the rest of the probe child
+	private ArrayList<Tuple> probeBuffer;
+	private int probeBufferPos;
+	// the tuple being probed and the tuples it matched
+	private Tuple probe;
+	private ArrayList<Tuple> matches;
+	private int matchPos;
+
+	/**
+	 * Constructor. Accepts two children to join on the equality of a field
+	 * of each.
+	 *
+	 * @param p
+	 *            The predicate to join on; its operator must be EQUALS
+	 * @param child1
+	 *            Iterator for the left relation to join
+	 * @param child2
+	 *            Iterator for the right relation to join
+	 */
+	public HashJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+		if (p.getOp() != Predicate.Op.EQUALS)
+			throw new IllegalArgumentException("Hash join needs an EQUALS predicate, not " + p.getOp());
+		this.pred = p;
+		this.child1 = child1;
+		this.child2 = child2;
+		this.td = TupleDesc.combine(child1.getTupleDesc(), child2.getTupleDesc());
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Opens the children and builds the hash table from the smaller one.
+	 */
+	public void open() throws DbException, NoSuchElementException,
+			TransactionAbortedException {
+		child1.open();
+		child2.open();
+		ArrayList<Tuple> left = new ArrayList<Tuple>();
+		ArrayList<Tuple> right = new ArrayList<Tuple>();
+		while (true) {
+			if (!child1.hasNext()) {
+				buildLeft = true;
+				break;
+			}
+			left.add(child1.next());
+			if (!child2.hasNext()) {
+				buildLeft = false;
+				break;
+			}
+			right.add(child2.next());
+		}
+		ArrayList<Tuple> build = buildLeft ? left : right;
+		int key = buildLeft ? pred.getField1() : pred.getField2();
+		table = new HashMap<Field, ArrayList<Tuple>>();
+		for (int i = 0; i < build.size(); i++) {
+			Tuple t = build.get(i);
+			ArrayList<Tuple> bucket = table.get(t.getField(key));
+			if (bucket == null) {
+				bucket = new ArrayList<Tuple>(1);
+				table.put(t.getField(key), bucket);
+			}
+			bucket.add(t);
+		}
+		probeBuffer = buildLeft ? right : left;
+		probeBufferPos = 0;
+		matches = null;
+	}
+
+	public void close() {
+		super.close();
+		child1.close();
+		child2.close();
+		table = null;
+		probeBuffer = null;
+		matches = null;
+		probe = null;
+	}
+
+	/**
+	 * Starts over with the probe child; the hash table is kept.
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		(buildLeft ? child2 : child1).rewind();
+		// the rewound child returns the buffered tuples again
+		probeBuffer = null;
+		matches = null;
+	}
+
+	/**
+	 * Returns the next tuple of the join, or null if there are no more.
+	 *
+	 * @see Join#readNext
+	 */
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		int key = buildLeft ? pred.getField2() : pred.getField1();
+		while (true) {
+			if (matches != null && matchPos < matches.size()) {
+				Tuple m = matches.get(matchPos++);
+				return buildLeft ? Join.concat(td, m, probe) : Join.concat(td, probe, m);
+			}
+			probe = nextProbe();
+			if (probe == null)
+				return null;
+			matches = table.get(probe.getField(key));
+			matchPos = 0;
+		}
+	}
+
+	private Tuple nextProbe() throws TransactionAbortedException, DbException {
+		if (probeBuffer != null) {
+			if (probeBufferPos < probeBuffer.size())
+				return probeBuffer.get(probeBufferPos++);
+			probeBuffer = null;
+		}
+		DbIterator probeChild = buildLeft ? child2 : child1;
+		return probeChild.hasNext() ? probeChild.next() : null;
+	}
+}
@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -17,8 +20,25 @@ public class HeapFile implements DbFile {
 	
 	File file;
 	TupleDesc tupleDesc;
-	int numOfPages;
+	volatile int numOfPages;
 	int fid;
+	final int pageSize;
+	// opened on first use and shared by all readers and writers; positional
+	// I/O on a FileChannel is safe to use from several threads at once
+	private volatile FileChannel channel;
+	// guards opening and closing the channel; deliberately not the
+	// HeapFile's own monitor, which addTuple holds while it may evict
+	private final Object channelLock = new Object();
+	// pages per mapped region when the file is memory-mapped
+	static final int MAP_REGION_PAGES = 4096;
+	private final boolean memoryMapped;
+	// read-only mappings of the file, one per MAP_REGION_PAGES pages; a
+	// region is remapped once the file has grown past its end
+	private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+	// pages bulkLoad writes with one call
+	static final int BULK_WRITE_PAGES = 64;
+	// which pages are full, so inserts skip them without fetching them
+	private final FreeSpaceMap freeSpace;
 	
 	
 	//HeapPage pageArray[];
@@ -29,19 +49,58 @@ public class HeapFile implements DbFile {
      * @param f the file that stores the on-disk backing store for this heap file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, BufferPool.PAGE_SIZE, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose pages are
+     * pageSize bytes long.  Larger pages hold more tuples, so a scan needs
+     * fewer reads; every page of the file must have the same size.
+     *
+     * @param f the file that stores the on-disk backing store for this heap file.
+     * @param pageSize the page size, see {@link BufferPool#checkPageSize}
+     */
+    public HeapFile(File f, TupleDesc td, int pageSize) {
+        this(f, td, pageSize, false);
+    }
+
+    /**
+     * Constructs a heap file with the default page size, optionally reading
+     * pages through a memory mapping, see
+     * {@link #HeapFile(File, TupleDesc, int, boolean)}.
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
+        this(f, td, BufferPool.PAGE_SIZE, memoryMapped);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally reading
+     * pages through a memory mapping of the file instead of read calls.
+     * Writes always go through the file channel; the mapping is shared with
+     * the OS page cache, so it sees them without being remapped.
+     *
+     * @param f the file that stores the on-disk backing store for this heap file.
+     * @param pageSize the page size, see {@link BufferPool#checkPageSize}
+     * @param memoryMapped true to read pages from a mapping of the file
+     */
+    public HeapFile(File f, TupleDesc td, int pageSize, boolean memoryMapped) {
+        BufferPool.checkPageSize(pageSize);
+        this.pageSize = pageSize;
+        this.memoryMapped = memoryMapped;
         this.tupleDesc = td;
         this.file = f;
         this.fid = file.getAbsoluteFile().hashCode();
-        this.numOfPages = (int)Math.ceil((double)f.length()/(double)BufferPool.PAGE_SIZE);
+        this.numOfPages = (int)Math.ceil((double)f.length()/(double)pageSize);
         if(f.length()==0) 
 //			try {
-//				writePage(new HeapPage(new HeapPageId(fid, 0), new byte[BufferPool.PAGE_SIZE]));
+//				writePage(new HeapPage(new HeapPageId(fid, 0), new byte[pageSize]));
 //			} catch (IOException e) {
 //				// TODO Auto-generated catch block
 //				e.printStackTrace();
 //			}
 			this.numOfPages = 0;
 //        }
+        this.freeSpace = new FreeSpaceMap(f, numOfPages);
     }
 
     /**
@@ -77,27 +136,26 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) { //TODO add checks for exceeding page limits, etc
         int pageNum = pid.pageno();
-        int offSet = (pageNum)*BufferPool.PAGE_SIZE;
+        long offSet = (long)pageNum*pageSize;
         
-        long fileSize = file.length();
-        //System.out.println("size: " + file.length());
-        InputStream iStream = null;
-        
-        byte[] byteWrite = new byte[BufferPool.PAGE_SIZE];
+        byte[] byteWrite = new byte[pageSize];
         try {
-			iStream = new FileInputStream(file);
-			iStream.skip(offSet);
-	    	iStream.read(byteWrite, 0, BufferPool.PAGE_SIZE);
-	    	iStream.close();
-		} catch (FileNotFoundException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+        	if(memoryMapped && readMapped(pageNum, byteWrite))
+        		return new HeapPage((HeapPageId)pid,byteWrite,tupleDesc);
+        	// a read may return fewer bytes than asked for; past the end of
+        	// the file the rest of the page stays zero
+        	ByteBuffer buf = ByteBuffer.wrap(byteWrite);
+        	FileChannel ch = channel();
+        	while(buf.hasRemaining()){
+        		if(ch.read(buf, offSet + buf.position()) < 0)
+        			break;
+        	}
 		} catch (IOException e1) {
 			e1.printStackTrace();
 		}
 
         try {
-			HeapPage pageRead = new HeapPage((HeapPageId)pid,byteWrite);
+			HeapPage pageRead = new HeapPage((HeapPageId)pid,byteWrite,tupleDesc);
 			return (Page)pageRead;
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -106,56 +164,219 @@ public class HeapFile implements DbFile {
 		return null;
     }
 
+    /**
+     * Reads up to count consecutive pages starting at page first with a
+     * single read, for read-ahead.  Pages past the end of the file are not
+     * returned.
+     *
+     * @return the pages read, in page number order
+     */
+    public ArrayList<Page> readPages(int first, int count) throws IOException {
+    	ArrayList<Page> pages = new ArrayList<Page>();
+    	count = Math.min(count, numPages() - first);
+    	if(first < 0 || count <= 0)
+    		return pages;
+    	if(memoryMapped){
+    		// mapped pages cost no syscall, so there is nothing to batch
+    		for(int i=0; i<count; i++){
+    			Page page = readPage(new HeapPageId(getId(), first + i));
+    			if(page!=null)
+    				pages.add(page);
+    		}
+    		return pages;
+    	}
+    	byte[] data = new byte[count * pageSize];
+    	ByteBuffer buf = ByteBuffer.wrap(data);
+    	FileChannel ch = channel();
+    	long offSet = (long)first*pageSize;
+    	while(buf.hasRemaining()){
+    		if(ch.read(buf, offSet + buf.position()) < 0)
+    			break;
+    	}
+    	for(int i=0; i<count; i++){
+    		byte[] pageData = Arrays.copyOfRange(data, i*pageSize, (i+1)*pageSize);
+    		pages.add(new HeapPage(new HeapPageId(getId(), first + i), pageData, tupleDesc));
+    	}
+    	return pages;
+    }
+
+    /**
+     * Copies page pageNum out of the mapped region that holds it, mapping or
+     * remapping the region if the page lies past its end.
+     *
+     * @return false if the page is not in the file yet
+     */
+    private boolean readMapped(int pageNum, byte[] dest) throws IOException {
+    	int r = pageNum / MAP_REGION_PAGES;
+    	int off = (pageNum % MAP_REGION_PAGES) * pageSize;
+    	MappedByteBuffer[] maps = regions;
+    	MappedByteBuffer region = r < maps.length ? maps[r] : null;
+    	if(region==null || region.capacity() < off + pageSize){
+    		region = mapRegion(r);
+    		if(region==null || region.capacity() < off + pageSize)
+    			return false;
+    	}
+    	// a duplicate has its own position, so readers do not disturb each other
+    	ByteBuffer page = region.duplicate();
+    	page.position(off);
+    	page.get(dest, 0, pageSize);
+    	return true;
+    }
+
+    /**
+     * Maps region r over as much of the file as currently exists, up to
+     * MAP_REGION_PAGES pages.  Regions before the last one are full-sized
+     * and never need remapping; the last one is remapped as pages are
+     * appended.
+     */
+    private MappedByteBuffer mapRegion(int r) throws IOException {
+    	synchronized (channelLock) {
+    		FileChannel ch = channel();
+    		long start = (long)r * MAP_REGION_PAGES * pageSize;
+    		long length = Math.min(ch.size() - start, (long)MAP_REGION_PAGES * pageSize);
+    		if(length <= 0)
+    			return null;
+    		MappedByteBuffer[] maps = regions;
+    		if(r < maps.length && maps[r]!=null && maps[r].capacity() >= length)
+    			return maps[r];
+    		MappedByteBuffer region = ch.map(FileChannel.MapMode.READ_ONLY, start, length);
+    		MappedByteBuffer[] grown = Arrays.copyOf(maps, Math.max(maps.length, r + 1));
+    		grown[r] = region;
+    		regions = grown;
+    		return region;
+    	}
+    }
+
+    /** Return true if pages are read through a memory mapping of the file */
+    public boolean isMemoryMapped() {
+    	return memoryMapped;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
     	HeapPage heapPage = (HeapPage)page;
-    	byte[] byteArray = heapPage.getPageData();
+    	// written straight from the page's own buffer, no copy
+    	byte[] byteArray = heapPage.sharePageData();
     	
     	int pageNumber = heapPage.getId().pageno();
-    	int offSet = (pageNumber)*BufferPool.PAGE_SIZE;
-    	
-    	RandomAccessFile oStream = null;
+    	long offSet = (long)pageNumber*pageSize;
     	
-    	oStream = new RandomAccessFile(file,"rw");
-    	oStream.skipBytes(offSet);
-    	oStream.write(byteArray);
+    	ByteBuffer buf = ByteBuffer.wrap(byteArray);
+    	FileChannel ch = channel();
+    	while(buf.hasRemaining())
+    		ch.write(buf, offSet + buf.position());
+    	// recovery redoes pages that did not reach the file before a crash
+    	if(pageNumber >= numOfPages){
+    		synchronized (this) {
+    			if(pageNumber >= numOfPages)
+    				numOfPages = pageNumber + 1;
+    		}
+    	}
+    }
+
+    // see DbFile.java for javadocs
+    public void sync() throws IOException {
+    	channel().force(false);
+    	freeSpace.save(file, numOfPages);
+    }
+
+    // see DbFile.java for javadocs
+    public int getPageSize() {
+    	return pageSize;
+    }
+
+    /**
+     * Closes the file channel.  The next read or write opens it again.
+     */
+    public void close() throws IOException {
+    	freeSpace.save(file, numOfPages);
+    	synchronized (channelLock) {
+    		if(channel!=null){
+    			channel.close();
+    			channel = null;
+    		}
+    		// mappings stay valid after the channel is closed; drop them so
+    		// a closed file does not keep its pages mapped
+    		regions = new MappedByteBuffer[0];
+    	}
+    }
+
+    private FileChannel channel() throws IOException {
+    	FileChannel ch = channel;
+    	if(ch==null){
+    		synchronized (channelLock) {
+    			if(channel==null)
+    				channel = new RandomAccessFile(file, "rw").getChannel();
+    			ch = channel;
+    		}
+    	}
+    	return ch;
+    }
+
+    /**
+     * Records that page pageNo may have gained empty slots without a delete
+     * going through this file, e.g. because a change to it was rolled back.
+     */
+    void pageMayHaveSpace(int pageNo) {
+    	freeSpace.setFree(pageNo);
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-    	//numOfPages = (int)(this.fileName.length()/BufferPool.PAGE_SIZE);
+    	//numOfPages = (int)(this.fileName.length()/pageSize);
         return numOfPages;
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> addTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
+    	// the page records its dirtier, which is how it gets written out
+    	if(tid==null)
+    		throw new DbException("A page can only be changed by a transaction");
     	
     	boolean pageFound = false;
     	
     	HeapPage gotPage = null;
+    	BufferPool buffPool = Database.getBufferPool();
     	
-    	for(int i=0;i<numOfPages;i++){
+    	// only pages the free space map does not know to be full are looked at
+    	for(int i=freeSpace.nextFree(0);i<numPages();i=freeSpace.nextFree(i+1)){
     		HeapPageId pageId = new HeapPageId(this.getId(), i);
-    		gotPage = (HeapPage)Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-    		if(gotPage!=null && gotPage.getNumEmptySlots()>0){
-    			pageFound = true;
-    			gotPage.addTuple(t);
-    			//gotPage.markDirty(true, tid);
-    			break;
+    		// take the exclusive lock straight away: two inserters that both
+    		// held a shared lock on the page would deadlock upgrading it
+    		boolean wasLocked = buffPool.holdsLock(tid, pageId);
+    		gotPage = (HeapPage)buffPool.getPage(tid, pageId, Permissions.READ_WRITE);
+    		if(gotPage==null)
+    			continue;
+    		try {
+    			if(gotPage.getNumEmptySlots()>0){
+    				pageFound = true;
+    				gotPage.addTuple(t);
+    				gotPage.markDirty(true, tid);
+    				if(gotPage.getNumEmptySlots()==0)
+    					freeSpace.setFull(i);
+    				break;
+    			}
+    			freeSpace.setFull(i);
+    		} finally {
+    			buffPool.unpinPage(pageId);
     		}
+    		// the full page was not changed, so the lock can go early
+    		if(!wasLocked)
+    			buffPool.releasePage(tid, pageId);
     	}
     	
     	if(!pageFound){
-    		gotPage = new HeapPage(new HeapPageId(this.getId(),numOfPages),HeapPage.createEmptyPageData(getId()));
-    		//gotPage = (HeapPage)buffPool.getPage(tid, new HeapPageId(this.getId(),this.numOfPages), Permissions.READ_WRITE);
-    	    int slots = gotPage.getNumEmptySlots();
-    		gotPage.addTuple(t);
-    		//gotPage.markDirty(true,tid);
-    		Database.getBufferPool().forcePage(gotPage, tid);
-    		this.numOfPages++;
+    		// appending is serialized so two transactions never create the same page
+    		synchronized (this) {
+    			gotPage = new HeapPage(new HeapPageId(this.getId(),numOfPages),new byte[pageSize],tupleDesc);
+    			gotPage.addTuple(t);
+    			buffPool.forcePage(gotPage, tid);
+    			buffPool.unpinPage(gotPage.getId());
+    			this.numOfPages++;
+    		}
     	}
     	
         ArrayList<Page> modifiedPages = new ArrayList<Page>();
@@ -164,52 +385,152 @@ public class HeapFile implements DbFile {
 
     }
 
+    /**
+     * Appends the tuples of an iterator to the end of the file.  They are
+     * packed into new pages in memory, which are written BULK_WRITE_PAGES
+     * at a time with a single write, without going through the buffer
+     * pool or looking for free slots in the existing pages.  Each tuple
+     * gets its RecordId and, once its page is on disk, is added to every
+     * index the catalog has on this table.
+     * <p>
+     * The new pages are not logged, so aborting tid does not take the
+     * tuples out again: this is for loading tables, not for transactions
+     * that may roll back.  Call sync to make the pages durable.
+     *
+     * @param tid the transaction that updates the indexes
+     * @param tuples the tuples to load; opened and closed here
+     * @return the number of tuples loaded
+     * @throws DbException if the tuples do not match this file's TupleDesc
+     */
+    public int bulkLoad(TransactionId tid, DbIterator tuples)
+        throws DbException, IOException, TransactionAbortedException {
+    	if(!tuples.getTupleDesc().equals(tupleDesc))
+    		throw new DbException("Tuple Descriptions didn't match");
+    	ArrayList<IndexFile> indexes = Database.getCatalog().getIndexes(getId());
+    	int perPage = new HeapPage(new HeapPageId(getId(), 0), new byte[pageSize], tupleDesc).getNumEmptySlots();
+    	// the tuples of the next BULK_WRITE_PAGES pages
+    	ArrayList<Tuple> pending = new ArrayList<Tuple>();
+    	byte[] batch = new byte[BULK_WRITE_PAGES * pageSize];
+    	int loaded = 0;
+    	tuples.open();
+    	try {
+    		// the child and the indexes take page locks, so they are only
+    		// used outside the monitor that appends are serialized on
+    		while(true){
+    			while(pending.size() < BULK_WRITE_PAGES * perPage && tuples.hasNext())
+    				pending.add(tuples.next());
+    			if(pending.isEmpty())
+    				break;
+    			appendPages(batch, pending, perPage);
+    			loaded += pending.size();
+    			for(int i=0; i<pending.size(); i++)
+    				for(int j=0; j<indexes.size(); j++)
+    					indexes.get(j).addTuple(tid, pending.get(i));
+    			pending.clear();
+    		}
+    	} finally {
+    		tuples.close();
+    	}
+    	return loaded;
+    }
+
+    /**
+     * Packs tuples into new pages after the last page of the file, which
+     * gives them their RecordIds, and writes the pages with one write.
+     */
+    private void appendPages(byte[] batch, ArrayList<Tuple> tuples, int perPage)
+        throws DbException, IOException {
+    	// appending is serialized with addTuple, see there
+    	synchronized (this) {
+    		int count = 0;
+    		HeapPage page = null;
+    		for(int i=0; i<tuples.size(); i++){
+    			if(page==null)
+    				page = new HeapPage(new HeapPageId(getId(), numOfPages + count), new byte[pageSize], tupleDesc);
+    			page.addTuple(tuples.get(i));
+    			if(page.getNumEmptySlots()==0 || i==tuples.size()-1){
+    				System.arraycopy(page.sharePageData(), 0, batch, count*pageSize, pageSize);
+    				if(page.getNumEmptySlots()==0)
+    					freeSpace.setFull(numOfPages + count);
+    				count++;
+    				page = null;
+    			}
+    		}
+    		long offSet = (long)numOfPages*pageSize;
+    		ByteBuffer buf = ByteBuffer.wrap(batch, 0, count*pageSize);
+    		FileChannel ch = channel();
+    		while(buf.hasRemaining())
+    			ch.write(buf, offSet + buf.position());
+    		numOfPages += count;
+    	}
+    }
+
     // see DbFile.java for javadocs
     public Page deleteTuple(TransactionId tid, Tuple t)
         throws DbException, TransactionAbortedException {
         BufferPool buffPool = Database.getBufferPool();
-        HeapPage gotPage = (HeapPage)buffPool.getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-        gotPage.deleteTuple(t);
+        PageId pid = t.getRecordId().getPageId();
+        HeapPage gotPage = (HeapPage)buffPool.getPage(tid, pid, Permissions.READ_WRITE);
+        try {
+        	gotPage.deleteTuple(t);
+        	gotPage.markDirty(true, tid);
+        	freeSpace.setFree(pid.pageno());
+        } finally {
+        	buffPool.unpinPage(pid);
+        }
         return gotPage;
     }
     
-    private class HeapFileIterator implements DbFileIterator{
-    	
+    /**
+     * Streams the tuples of the file one page at a time.  A page is only
+     * fetched once the tuples of the previous one are used up, so opening
+     * the iterator reads nothing and memory use does not grow with the
+     * size of the table.  The tuples of the current page are copied out
+     * so the page can be unpinned right away and the caller may delete
+     * from it while iterating.  With predicates, only the tuples that pass
+     * all of them are built and copied.
+     */
+    private class HeapFileIterator extends AbstractDbFileIterator {
+
+    	TransactionId tid;
+    	List<Predicate> preds;
+    	int nextPageNo;
     	Iterator<Tuple> tupleItr;
-    	ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
-    	
-    	HeapFileIterator(ArrayList<Tuple> tupleList){
-    		this.tupleList = tupleList;
+    	boolean opened = false;
+
+    	HeapFileIterator(TransactionId tid, List<Predicate> preds){
+    		this.tid = tid;
+    		this.preds = preds;
     	}
-    
 
 		@Override
-		public void close() {
+		public void open() throws DbException, TransactionAbortedException {
+			nextPageNo = 0;
 			tupleItr = null;
+			opened = true;
 		}
 
 		@Override
-		public boolean hasNext() throws DbException,
-				TransactionAbortedException {
-			if(tupleItr!=null){
-				return tupleItr.hasNext();
-			} 
-			return false;
-		}
-
-		@Override
-		public Tuple next() throws DbException, TransactionAbortedException,
-				NoSuchElementException {
-			if(tupleItr!=null){
-				return tupleItr.next();
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if(!opened)
+				return null;
+			while(tupleItr==null || !tupleItr.hasNext()){
+				if(nextPageNo>=numPages())
+					return null;
+				HeapPageId pid = new HeapPageId(getId(), nextPageNo++);
+				BufferPool buffPool = Database.getBufferPool();
+				HeapPage page = (HeapPage)buffPool.getPage(tid, pid, Permissions.READ_ONLY);
+				ArrayList<Tuple> pageTuples = new ArrayList<Tuple>();
+				try {
+					Iterator<Tuple> pageIterator = page.iterator(preds);
+					while(pageIterator.hasNext())
+						pageTuples.add(pageIterator.next());
+				} finally {
+					buffPool.unpinPage(pid);
+				}
+				tupleItr = pageTuples.iterator();
 			}
-			throw new NoSuchElementException();
-		}
-
-		@Override
-		public void open() throws DbException, TransactionAbortedException {
-			this.tupleItr = this.tupleList.iterator();
-			
+			return tupleItr.next();
 		}
 
 		@Override
@@ -217,36 +538,40 @@ public class HeapFile implements DbFile {
 			this.close();
 			this.open();
 		}
-    	
+
+		@Override
+		public void close() {
+			super.close();
+			tupleItr = null;
+			opened = false;
+		}
+
     }
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-    	ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
-    	HeapFileIterator heapFileIterator;
-    	
-        for(int i=0;i<this.numPages();i++){
-        	
-        	HeapPageId pid = new HeapPageId(this.getId(), i);
-        	Page iterPage = null;
-			try {
-				BufferPool buffPool = Database.getBufferPool();
-				iterPage = buffPool.getPage(tid, pid, Permissions.READ_ONLY);
-			} catch (TransactionAbortedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (DbException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-        	HeapPage iterHeap = (HeapPage)iterPage;
-        	Iterator<Tuple> pageIterator = iterHeap.iterator();
-        	while(pageIterator.hasNext()){
-        		tupleList.add(pageIterator.next());
-        	}
-        }
-        heapFileIterator = new HeapFileIterator(tupleList);
-        return heapFileIterator;
+        return new HeapFileIterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of the file that satisfy pred.
+     * The predicate is tested against the raw page bytes, so tuples that
+     * fail it are never built.
+     *
+     * @param pred the predicate, or null for every tuple
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate pred) {
+        return new HeapFileIterator(tid, pred == null ? null : Collections.singletonList(pred));
+    }
+
+    /**
+     * Returns an iterator over the tuples of the file that satisfy every
+     * predicate in preds, each tested against the raw page bytes.
+     *
+     * @param preds the predicates, or null for every tuple
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> preds) {
+        return new HeapFileIterator(tid, preds);
     }
 
 }
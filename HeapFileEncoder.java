@@ -1,7 +1,18 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -9,10 +20,21 @@ import java.util.ArrayList;
  * pages of binary data in the appropriate format for simpledb heap pages
  * Pages are padded out to a specified length, and written consecutive in a
  * data file.
+ * <p>
+ * Text files are split into chunks of whole lines that are parsed on
+ * several threads at once, straight from the bytes of the file.  The
+ * parsed records are packed into pages in file order by the calling
+ * thread, which writes WRITE_PAGES pages at a time, so the output is the
+ * same as if the file had been read line by line.
  */
 
 public class HeapFileEncoder {
 
+  // bytes of input parsed by one task
+  static final int CHUNK_BYTES = 8 << 20;
+  // pages written with one call
+  static final int WRITE_PAGES = 64;
+
   /** Convert the specified tuple list (with only integer fields) into a binary
    * page file. <br>
    *
@@ -26,29 +48,29 @@ public class HeapFileEncoder {
    * @param outFile The output file to write data to
    * @param npagebytes The number of bytes per page in the output file
    * @param numFields the number of fields in each input tuple
-   * @throws IOException if the temporary/output file can't be opened
+   * @throws IOException if the output file can't be opened
    */
   public static void convert(ArrayList<ArrayList<Integer>> tuples, File outFile, int npagebytes, int numFields) throws IOException {
-      File tempInput = File.createTempFile("tempTable", ".txt");
-      tempInput.deleteOnExit();
-      BufferedWriter bw = new BufferedWriter(new FileWriter(tempInput));
+      byte[] records = new byte[tuples.size() * numFields * 4];
+      ByteBuffer buf = ByteBuffer.wrap(records);
       for (ArrayList<Integer> tuple : tuples) {
-          int writtenFields = 0;
-          for (Integer field : tuple) {
-              writtenFields++;
-              if (writtenFields > numFields) {
-                  throw new RuntimeException("Tuple has more than " + numFields + " fields: (" +
-                          Utility.listToString(tuple) + ")");
-              }
-              bw.write(String.valueOf(field));
-              if (writtenFields < numFields) {
-                  bw.write(',');
-              }
+          if (tuple.size() > numFields) {
+              throw new RuntimeException("Tuple has more than " + numFields + " fields: (" +
+                      Utility.listToString(tuple) + ")");
           }
-          bw.write('\n');
+          for (int i = 0; i < numFields; i++)
+              buf.putInt(i < tuple.size() ? tuple.get(i).intValue() : 0);
+      }
+      PageWriter pw = new PageWriter(outFile, npagebytes, numFields * 4);
+      boolean done = false;
+      try {
+          pw.add(records, tuples.size());
+          pw.close();
+          done = true;
+      } finally {
+          if (!done)
+              pw.abandon();
       }
-      bw.close();
-      convert(tempInput, outFile, npagebytes, numFields);
   }
 
       public static void convert(File inFile, File outFile, int npagebytes,
@@ -60,14 +82,30 @@ public class HeapFileEncoder {
       convert(inFile,outFile,npagebytes,numFields,ts);
       }
 
+  /** Convert the specified input text file into a binary page file for a
+   * table with schema td, e.g. one from the catalog.
+   *
+   * @see #convert(File, File, int, int, Type[])
+   */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 TupleDesc td) throws IOException {
+      Type[] ts = new Type[td.numFields()];
+      for (int i = 0; i < ts.length; i++) {
+          ts[i] = td.getType(i);
+      }
+      convert(inFile, outFile, npagebytes, ts.length, ts);
+  }
+
    /** Convert the specified input text file into a binary
     * page file. <br>
-    * Assume format of the input file is (note that only integer fields are
-    * supported):<br>
-    * int,...,int\n<br>
-    * int,...,int\n<br>
+    * Assume format of the input file is:<br>
+    * field,...,field\n<br>
+    * field,...,field\n<br>
     * ...<br>
-    * where each row represents a tuple.<br>
+    * where each row represents a tuple and each field is an int or a
+    * string, as given by typeAr.  Spaces around a field are dropped, strings
+    * longer than Type.STRING_LEN bytes are cut, and empty lines are
+    * skipped.<br>
     * <p>
     * The format of the output file will be as specified in HeapPage and
     * HeapFile.
@@ -79,138 +117,277 @@ public class HeapFileEncoder {
     * @param npagebytes The number of bytes per page in the output file
     * @param numFields the number of fields in each input line/output tuple
     * @throws IOException if the input/output file can't be opened or a
-    *   malformed input line is encountered
+    *   malformed input line is encountered; outFile is then deleted
     */
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr)
       throws IOException {
 
+      final Type[] types = Arrays.copyOf(typeAr, numFields);
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
-          nrecbytes += typeAr[i].getLen();
-      }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
-      
-    //  per record, we need one bit; there are nrecords per page, so we need
-    // nrecords bits, i.e., ((nrecords/32)+1) integers.
-    int nheaderbytes = (nrecords / 8);
-    if (nheaderbytes * 8 < nrecords)
-        nheaderbytes++;  //ceiling
-    int nheaderbits = nheaderbytes * 8;
-
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
-    // our numbers probably won't be much larger than 1024 digits
-    char buf[] = new char[1024];
-
-    int curpos = 0;
-    int recordcount = 0;
-    int npages = 0;
-    int fieldNo = 0;
-
-    ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-    DataOutputStream headerStream = new DataOutputStream(headerBAOS);
-    ByteArrayOutputStream pageBAOS = new ByteArrayOutputStream(npagebytes);
-    DataOutputStream pageStream = new DataOutputStream(pageBAOS);
-
-    boolean done = false;
-    boolean first = true;
-    while (!done) {
-        int c = br.read();
-        
-        if (c == '\n') {
-            if (first)
-                continue;
-            recordcount++;
-            first = true;
-        } else
-            first = false;
-        if (c == ',' || c == '\n' || c == '\r') {
-            String s = new String(buf, 0, curpos);
-            if (typeAr[fieldNo] == Type.INT_TYPE) {
-                try {
-                    pageStream.writeInt(Integer.parseInt(s.trim()));
-                } catch (NumberFormatException e) {
-                    System.out.println ("BAD LINE : " + s);
-                }
-            }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
-                s = s.trim();
-                int overflow = Type.STRING_LEN - s.length();
-                if (overflow < 0) {
-                    String news = s.substring(0,Type.STRING_LEN);
-                    s  = news;
-                }
-                pageStream.writeInt(s.length());
-                pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
-            }
-            curpos = 0;
-            if (c == '\n')
-                fieldNo = 0;
-            else
-                fieldNo++;
-            
-        } else if (c == -1) {
-            done = true;
-            
-        } else {
-            buf[curpos++] = (char)c;
-            continue;
-        }
-        
-        // if we wrote a full page of records, or if we're done altogether,
-        // write out the header of the page.
-        //
-        // in the header, write a 1 for bits that correspond to records we've
-        // written and 0 for empty slots.
-        //
-        // when we're done, also flush the page to disk, but only if it has
-        // records on it.  however, if this file is empty, do flush an empty
-        // page to disk.
-        if (recordcount >= nrecords
-            || done && recordcount > 0
-            || done && npages == 0) {
-            int i = 0;
-            byte headerbyte = 0;
-            
-            for (i=0; i<nheaderbits; i++) {
-                if (i < recordcount)
-                    headerbyte |= (1 << (i % 8));
-                
-                if (((i+1) % 8) == 0) {
-                    headerStream.writeByte(headerbyte);
-                    headerbyte = 0;
-                }
-            }
-            
-            if (i % 8 > 0)
-                headerStream.writeByte(headerbyte);
-            
-            // pad the rest of the page with zeroes
-            
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
-                pageStream.writeByte(0);
-            
-            // write header and body to file
-            headerStream.flush();
-            headerBAOS.writeTo(os);
-            pageStream.flush();
-            pageBAOS.writeTo(os);
-            
-            // reset header and body for next page
-            headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-            headerStream = new DataOutputStream(headerBAOS);
-            pageBAOS = new ByteArrayOutputStream(npagebytes);
-            pageStream = new DataOutputStream(pageBAOS);
-            
-            recordcount = 0;
-            npages++;
-        }
-    }
-    br.close();
-    os.close();
+          nrecbytes += types[i].getLen();
+      }
+
+      FileInputStream in = new FileInputStream(inFile);
+      PageWriter pw = new PageWriter(outFile, npagebytes, nrecbytes);
+      boolean done = false;
+      int threads = Runtime.getRuntime().availableProcessors();
+      ThreadPoolExecutor parsers = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(),
+              new ThreadFactory() {
+                  public Thread newThread(Runnable r) {
+                      Thread t = new Thread(r, "simpledb-encoder");
+                      t.setDaemon(true);
+                      return t;
+                  }
+              });
+      try {
+          final FileChannel ch = in.getChannel();
+          long size = ch.size();
+          // chunks being parsed, in file order; a few per thread keep the
+          // threads busy without holding the whole file in memory
+          LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+          long start = 0;
+          while (start < size || !pending.isEmpty()) {
+              while (start < size && pending.size() < threads * 2) {
+                  final long from = start;
+                  final long to = lineEnd(ch, Math.min(start + CHUNK_BYTES, size), size);
+                  final int recBytes = nrecbytes;
+                  pending.add(parsers.submit(new Callable<Chunk>() {
+                      public Chunk call() throws IOException {
+                          return parse(ch, from, (int)(to - from), types, recBytes);
+                      }
+                  }));
+                  start = to;
+              }
+              Chunk c = result(pending.removeFirst());
+              pw.add(c.records, c.count);
+          }
+          pw.close();
+          done = true;
+      } finally {
+          parsers.shutdownNow();
+          in.close();
+          // a partly written file would look like a valid, shorter table
+          if (!done)
+              pw.abandon();
+      }
+  }
+
+  /** The records parsed from one chunk of the input. */
+  private static class Chunk {
+      byte[] records;
+      int count;
+  }
+
+  private static Chunk result(Future<Chunk> f) throws IOException {
+      try {
+          return f.get();
+      } catch (InterruptedException e) {
+          throw new IOException("Interrupted while loading", e);
+      } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException)
+              throw (IOException)e.getCause();
+          throw new IOException(e.getCause());
+      }
+  }
+
+  /**
+   * Returns the position just after the first newline at or after pos,
+   * or size if there is none.
+   */
+  private static long lineEnd(FileChannel ch, long pos, long size) throws IOException {
+      ByteBuffer buf = ByteBuffer.allocate(4096);
+      while (pos < size) {
+          buf.clear();
+          int n = ch.read(buf, pos);
+          if (n < 0)
+              break;
+          for (int i = 0; i < n; i++)
+              if (buf.get(i) == '\n')
+                  return pos + i + 1;
+          pos += n;
+      }
+      return size;
+  }
+
+  /**
+   * Reads len bytes at pos, which hold whole lines, and serializes each
+   * line as a record the way HeapPage stores tuples.
+   */
+  private static Chunk parse(FileChannel ch, long pos, int len, Type[] types, int nrecbytes)
+      throws IOException {
+      byte[] text = new byte[len];
+      ByteBuffer buf = ByteBuffer.wrap(text);
+      while (buf.hasRemaining()) {
+          if (ch.read(buf, pos + buf.position()) < 0)
+              throw new EOFException("Input file shrank while loading");
+      }
+
+      Chunk c = new Chunk();
+      c.records = new byte[1024 * nrecbytes];
+      int p = 0;
+      while (p < len) {
+          int eol = p;
+          while (eol < len && text[eol] != '\n')
+              eol++;
+          int end = eol;
+          if (end > p && text[end - 1] == '\r')
+              end--;
+          if (end > p) {
+              if ((c.count + 1) * nrecbytes > c.records.length)
+                  c.records = Arrays.copyOf(c.records, c.records.length * 2);
+              parseLine(text, p, end, types, c.records, c.count * nrecbytes);
+              c.count++;
+          }
+          p = eol + 1;
+      }
+      return c;
+  }
+
+  /** Serializes the line text[start, end) into dest at off. */
+  private static void parseLine(byte[] text, int start, int end, Type[] types, byte[] dest, int off)
+      throws IOException {
+      int p = start;
+      for (int f = 0; f < types.length; f++) {
+          if (p > end)
+              throw badLine(text, start, end);
+          int fend = p;
+          while (fend < end && text[fend] != ',')
+              fend++;
+          // trim the field
+          int s = p, e = fend;
+          while (s < e && (text[s] == ' ' || text[s] == '\t'))
+              s++;
+          while (e > s && (text[e - 1] == ' ' || text[e - 1] == '\t'))
+              e--;
+          if (types[f] == Type.INT_TYPE) {
+              writeInt(dest, off, parseInt(text, s, e, start, end));
+          } else {
+              int n = Math.min(e - s, Type.STRING_LEN);
+              writeInt(dest, off, n);
+              System.arraycopy(text, s, dest, off + 4, n);
+          }
+          off += types[f].getLen();
+          p = fend + 1;
+      }
+      if (p <= end)
+          throw badLine(text, start, end);
+  }
+
+  private static int parseInt(byte[] text, int s, int e, int start, int end) throws IOException {
+      boolean neg = false;
+      int p = s;
+      if (p < e && (text[p] == '-' || text[p] == '+'))
+          neg = text[p++] == '-';
+      if (p == e || e - p > 10)
+          throw badLine(text, start, end);
+      long v = 0;
+      for (; p < e; p++) {
+          int d = text[p] - '0';
+          if (d < 0 || d > 9)
+              throw badLine(text, start, end);
+          v = v * 10 + d;
+      }
+      if (neg)
+          v = -v;
+      if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE)
+          throw badLine(text, start, end);
+      return (int)v;
+  }
+
+  private static void writeInt(byte[] dest, int off, int v) {
+      dest[off] = (byte)(v >>> 24);
+      dest[off + 1] = (byte)(v >>> 16);
+      dest[off + 2] = (byte)(v >>> 8);
+      dest[off + 3] = (byte)v;
+  }
+
+  private static IOException badLine(byte[] text, int start, int end) {
+      return new IOException("BAD LINE : " + new String(text, start, end - start));
+  }
+
+  /**
+   * Packs serialized records into pages, in the order they are added, and
+   * writes the pages WRITE_PAGES at a time.
+   */
+  private static class PageWriter {
+      final File outFile;
+      final FileOutputStream os;
+      final int npagebytes;
+      final int nrecbytes;
+      // records per page, and the header bytes that track them
+      final int nrecords;
+      final int nheaderbytes;
+      final byte[] pages;
+      // the page being filled in pages, and how many records it has
+      int page;
+      int recordcount;
+      int npages;
+
+      PageWriter(File outFile, int npagebytes, int nrecbytes) throws IOException {
+          this.npagebytes = npagebytes;
+          this.nrecbytes = nrecbytes;
+          this.nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+          this.nheaderbytes = (nrecords + 7) / 8;
+          this.pages = new byte[WRITE_PAGES * npagebytes];
+          this.outFile = outFile;
+          this.os = new FileOutputStream(outFile);
+      }
+
+      void add(byte[] records, int count) throws IOException {
+          int r = 0;
+          while (r < count) {
+              int n = Math.min(count - r, nrecords - recordcount);
+              int base = page * npagebytes;
+              System.arraycopy(records, r * nrecbytes, pages,
+                      base + nheaderbytes + recordcount * nrecbytes, n * nrecbytes);
+              for (int i = recordcount; i < recordcount + n; i++)
+                  pages[base + i / 8] |= (byte)(1 << (i % 8));
+              recordcount += n;
+              r += n;
+              if (recordcount == nrecords)
+                  nextPage();
+          }
+      }
+
+      private void nextPage() throws IOException {
+          page++;
+          npages++;
+          recordcount = 0;
+          if (page == WRITE_PAGES)
+              flush();
+      }
+
+      private void flush() throws IOException {
+          os.write(pages, 0, page * npagebytes);
+          Arrays.fill(pages, 0, page * npagebytes, (byte)0);
+          page = 0;
+      }
+
+      /**
+       * Writes the last page if it has records on it, or an empty page if
+       * the file would otherwise be empty.
+       */
+      void close() throws IOException {
+          try {
+              if (recordcount > 0 || npages == 0)
+                  nextPage();
+              flush();
+          } finally {
+              os.close();
+          }
+      }
+
+      /** Closes the file without finishing it, and deletes it. */
+      void abandon() {
+          try {
+              os.close();
+          } catch (IOException e) {
+              e.printStackTrace();
+          }
+          outFile.delete();
+      }
   }
 }
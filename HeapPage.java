@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * HeapPage stores pages of HeapFiles and implements the Page interface that
@@ -14,56 +15,70 @@ public class HeapPage implements Page {
 
     HeapPageId pid;
     TupleDesc td;
-    byte header[];
-    Tuple tuples[];
     int numSlots;
+    // the length of the data the page was built from
+    int pageSize;
     boolean dirty;
     TransactionId tid = null;
-    ArrayList<Tuple> tpl = new ArrayList<Tuple>();
+    // the page as it is on disk: header bytes, then the tuple slots.  Tuples
+    // are only decoded from it when someone asks for them, using the field
+    // offsets of the TupleDesc
+    byte[] data;
+    byte[] oldData;
+    // true while data is also the before image (or another page's), so it
+    // has to be copied before the first change
+    boolean shared;
+    int headerSize;
+    // number of used slots, and no slot below freeHint is empty
+    int numUsed;
+    int freeHint;
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.PAGE_SIZE*8) / (tuple size * 8 + 1))
-     * <p> where tuple size is the size of tuples in this
+     *          floor((page size*8) / (tuple size * 8 + 1))
+     * <p> where page size is data.length, the page size of the file, and
+     * tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps data rather than parsing it, so the caller must not
+     * change the array afterwards.  Tuples are built from it on demand.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
-     * @see BufferPool#PAGE_SIZE
+     * @see DbFile#getPageSize
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()));
+    }
+
+    /**
+     * Create a HeapPage of a file with schema td, e.g. one that is not in
+     * the catalog.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, byte[] data, TupleDesc td) throws IOException {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = data.length;
+        this.td = td;
         this.numSlots = maxNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        int bytes = getHeaderSize()*8;
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++) 
-            header[i] = dis.readByte();
-
-        try{
-            // allocate and read the actual records of this page
-            tuples = new Tuple[numSlots];
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        
-        
-        for(int i = 0; i<tuples.length; i++){
-        	if (getSlot(i))
-        		tpl.add(tuples[i]);
+        this.headerSize = getHeaderSize();
+        this.data = data;
+        this.oldData = data;
+        this.shared = true;
+        for (int b=0; b<headerSize; b+=8) {
+            long word = headerWord(b);
+            int slotsLeft = numSlots - b*8;
+            if (slotsLeft < 64)
+                word &= (1L << slotsLeft) - 1;
+            numUsed += Long.bitCount(word);
         }
+        this.freeHint = nextSlot(0, false);
     }
 
     /** Return the number of tuples on this page.
@@ -71,17 +86,12 @@ public class HeapPage implements Page {
         @param tupleSize the number of bytes occupied by a tuple on a page.
     */
     public int getNumTuples() {
-    	int tot = 0;
-        for(int i=0;i<header.length;i++)
-        	for(int j=0; j<8; j++)
-        		if(getSlot(i*8+j))
-        			tot++;
-        return tot;
+        return numUsed;
     }
 
     private int maxNumTuples() {
     	// Implemented by Ishwar
-        return (int) Math.floor((BufferPool.PAGE_SIZE*8) / (Database.getCatalog().getTupleDesc(pid.getTableId()).getSize()* 8 + 1));
+        return (int) Math.floor((pageSize*8) / (td.getSize()* 8 + 1));
     
     }
     /**
@@ -98,11 +108,21 @@ public class HeapPage implements Page {
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
-        // some code goes here
-        // Not necessary for Phase 1 (in CS222 @UCI)
+        try {
+            return new HeapPage(pid, oldData, td);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         return null;
     }
 
+    /** Make the current contents of this page its before image, e.g. once
+        the transaction that modified it has committed */
+    public synchronized void setBeforeImage() {
+        oldData = data;
+        shared = true;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -111,38 +131,46 @@ public class HeapPage implements Page {
     	return pid;
     }
 
+    /** Offset in data of the first byte of slot i. */
+    private int slotOffset(int i) {
+        return headerSize + i * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Builds the tuple in slot i from the page bytes.  It is a
+     * {@link CompactTuple}, so its Fields are only created if asked for.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!getSlot(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    private Tuple readTuple(int slotId) {
+        Tuple t = new CompactTuple(td, data, slotOffset(slotId));
+        t.setRecordId(new RecordId(pid, slotId));
+        return t;
+    }
+
+    /**
+     * Returns the tuple in slot i, e.g. one found through an index, or null
+     * if the slot is empty.
+     */
+    public Tuple getTuple(int slotId) {
+        if (!getSlot(slotId))
             return null;
-        }
+        return readTuple(slotId);
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
+    /**
+     * Return true if the tuple in slot i satisfies p, judged from the page
+     * bytes without building the tuple.
+     */
+    public boolean matches(int slotId, Predicate p) {
+        int f = p.getField();
+        return p.filter(td.getType(f), data, slotOffset(slotId) + td.getOffset(f));
+    }
 
-        return t;
+    /** Gives the page its own copy of data before the first change. */
+    private void beforeWrite() {
+        if (shared) {
+            data = data.clone();
+            shared = false;
+        }
     }
 
     /**
@@ -157,64 +185,18 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!getSlot(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // the page is always kept in its serialized form
+        return data.clone();
+    }
 
-        return baos.toByteArray();
+    /**
+     * Returns the bytes of this page without copying them, e.g. for
+     * writing the page to disk.  The caller must not change the array.
+     * The page stops writing to it: its next change works on a copy.
+     */
+    synchronized byte[] sharePageData() {
+        shared = true;
+        return data;
     }
 
     /**
@@ -228,55 +210,63 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData(int tableid) {
-        int len = BufferPool.PAGE_SIZE;
+        int len = Database.getCatalog().getDbFile(tableid).getPageSize();
         return new byte[len]; //all 0
     }
 
     /**
      * Delete the specified tuple from the page;  the tuple should be updated to reflect
-     *   that it is no longer stored on any page.
+     *   that it is no longer stored on any page.  The tuple is found by its
+     *   RecordId, so it need not be the same object the page handed out.
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
-    	int temp = tpl.indexOf(t);
-    	if(temp == -1 || !t.getRecordId().getPageId().equals(pid))
+    	RecordId rid = t.getRecordId();
+    	if(rid == null || !pid.equals(rid.getPageId()))
     		throw new DbException("Tuple is not on this page");
-    	tpl.remove(temp);
-    	int num = t.getRecordId().tupleno();
-    	tuples[num] = null;
-    	t.setRecordId(null);
+    	int num = rid.tupleno();
+    	if(num < 0 || num >= numSlots || !getSlot(num))
+    		throw new DbException("Tuple slot is already empty");
+    	beforeWrite();
     	setSlot(num, false);
+    	numUsed--;
+    	if(num < freeHint)
+    		freeHint = num;
+    	// empty slots are kept zeroed, as they are written by HeapFileEncoder
+    	Arrays.fill(data, slotOffset(num), slotOffset(num + 1), (byte)0);
+    	t.setRecordId(null);
     }
 
     /**
      * Adds the specified tuple to the page;  the tuple should be updated to reflect
-     *  that it is now stored on this page.
+     *  that it is now stored on this page.  The tuple is serialized into
+     *  the page right away, so later changes to t do not reach the page.
      * @throws DbException if the page is full (no empty slots) or tupledesc
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void addTuple(Tuple t) throws DbException {
+    public synchronized void addTuple(Tuple t) throws DbException {
         // some code goes here
     	if(!t.getTupleDesc().equals(td))
     		throw new DbException("Tuple Description does not match");
-    	if(getNumEmptySlots() < 1)
+    	if(numUsed >= numSlots)
     		throw new DbException("No empty slots on page");
-    	boolean full = true;
-    	int i = -1;
-    	while(full && i < tuples.length){
-    		i++;
-    		full = getSlot(i);
+    	int i = nextSlot(freeHint, false);
+    	beforeWrite();
+    	if(t instanceof CompactTuple)
+    		((CompactTuple)t).serialize(data, slotOffset(i));
+    	else{
+    		ByteBuffer buf = ByteBuffer.wrap(data, slotOffset(i), td.getSize());
+    		for (int j=0; j<td.numFields(); j++)
+    			t.getField(j).serialize(buf);
     	}
-    	if(i >= tuples.length)
-    		throw new DbException("No empty slots on page");
-    	RecordId rid = new RecordId(pid, i);
     	setSlot(i, true);
-    	t.setRecordId(rid);
-    	tuples[i] = t;
-    	tpl.add(i, t);
+    	numUsed++;
+    	freeHint = i + 1;
+    	t.setRecordId(new RecordId(pid, i));
     }
 
     /**
@@ -304,7 +294,39 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-    	return numSlots - getNumTuples();
+    	return numSlots - numUsed;
+    }
+
+    /**
+     * Returns the first slot at or after from that is used (or empty, if
+     * used is false), or numSlots if there is none.  Scans the header 64
+     * slots at a time.
+     */
+    private int nextSlot(int from, boolean used) {
+    	while(from < numSlots){
+    		int b = from >>> 3;
+    		long word = headerWord(b);
+    		if(!used)
+    			word = ~word;
+    		// ignore the slots before from in the first byte
+    		word &= -1L << (from & 7);
+    		if(word != 0)
+    			return Math.min((b << 3) + Long.numberOfTrailingZeros(word), numSlots);
+    		from = (b + 8) << 3;
+    	}
+    	return numSlots;
+    }
+
+    /**
+     * Returns up to 8 header bytes starting at byte b as a long, with slot
+     * b*8 in the lowest bit.  Bytes past the header read as zero.
+     */
+    private long headerWord(int b) {
+    	long word = 0;
+    	int end = Math.min(b + 8, headerSize);
+    	for(int k=b; k<end; k++)
+    		word |= (data[k] & 0xffL) << ((k - b) << 3);
+    	return word;
     }
 
     /**
@@ -316,26 +338,25 @@ public class HeapPage implements Page {
     	//int headerByteNum =  i/8;// index of header byte that contains info of this slot
     	//int headerBitNum =  9 - (i-headerByteNum*8); //little endian, 8th bit = 1 implies 1, not 256
     	
-//    	if(headerByteNum >= header.length) {
-//    		return false;
-//    	
-        if( (header[headerByteNum]>>headerBitNum )%2 == 0){
+    	if(i >= numSlots)
+    		return false;
+        if( ((data[headerByteNum] >> headerBitNum) & 1) == 0){
         	return false;
         }
         return true;
     }
 
     /**
-     * Abstraction to fill or clear a slot on this page.
+     * Abstraction to fill or clear a slot on this page.  Call beforeWrite first.
      */
     private void setSlot(int i, boolean value) {
         // some code goes here
     	int headerByteNum = i/8;
     	int headerBitNum = (i-headerByteNum*8);
     	if(value)
-    		header[headerByteNum] |= (1 << headerBitNum);
+    		data[headerByteNum] |= (1 << headerBitNum);
     	else
-    		header[headerByteNum] &= ~(1 << headerBitNum);
+    		data[headerByteNum] &= ~(1 << headerBitNum);
     }
 
     /**
@@ -343,9 +364,56 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        
-        return tpl.iterator();
+        return iterator((List<Predicate>) null);
     }
 
-}
+    /**
+     * @return an iterator over the tuples on this page that satisfy p, or
+     * over all of them if p is null.  Each tuple is tested against the page
+     * bytes first and only built if it passes.
+     */
+    public Iterator<Tuple> iterator(Predicate p) {
+        return iterator(p == null ? null : Collections.singletonList(p));
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy every
+     * predicate in ps, or over all of them if ps is null.
+     */
+    public Iterator<Tuple> iterator(final List<Predicate> ps) {
+        return new Iterator<Tuple>() {
+            int next = advance(0);
+
+            private int advance(int from) {
+                from = nextSlot(from, true);
+                while (ps != null && from < numSlots && !matchesAll(from))
+                    from = nextSlot(from + 1, true);
+                return from;
+            }
+
+            private boolean matchesAll(int slotId) {
+                for (int i = 0; i < ps.size(); i++)
+                    if (!matches(slotId, ps.get(i)))
+                        return false;
+                return true;
+            }
 
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (next >= numSlots)
+                    throw new NoSuchElementException();
+                Tuple t = readTuple(next);
+                next = advance(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+}
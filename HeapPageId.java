@@ -69,9 +69,10 @@ public class HeapPageId implements PageId {
      *  constructors.
      */
     public int[] serialize() {
-        // some code goes here
-        // Not necessary for Phase 1 (in CS222 @UCI)
-        return null;
+        int[] res = new int[2];
+        res[0] = tableId;
+        res[1] = pgNo;
+        return res;
     }
 
 }
@@ -0,0 +1,445 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * HybridHashJoin is an equi-join for inputs that may not fit in memory.
+ * <p>
+ * Both children are split into partitions by a hash of their join field,
+ * so matching tuples always land in the same partition.  child1 is read
+ * first and its partitions are kept in memory for as long as they fit in
+ * the memory budget; when they no longer do, the largest one is spilled to
+ * a temporary HeapFile, and later tuples for it are appended there a page
+ * at a time.  Tuples of child2 whose partition stayed in memory are joined
+ * right away; the others are spilled to a matching file.  Each pair of
+ * spilled partitions is then joined by another HybridHashJoin with a
+ * different hash, which hashes the smaller of the two files and splits it
+ * further if it still does not fit.  After MAX_DEPTH levels, e.g. for a
+ * single very common key, a partition is joined in memory whatever its
+ * size.
+ * <p>
+ * The memory budget is counted in pages of BufferPool.PAGE_SIZE bytes and
+ * covers the tuples kept in memory plus one page of buffer per spilled
+ * partition; it is approximate, as tuples are counted by their size on a
+ * page.  As with Join, an output tuple has the fields of child1 followed
+ * by those of child2.
+ * <p>
+ * Spill files are private to the operator: they are read straight from
+ * the HeapFile and are not in the catalog.  The files of a partition are
+ * deleted once it has been joined, and any that are left by close, or
+ * by an open that fails.
+ */
+public class HybridHashJoin extends AbstractDbIterator {
+
+	// levels of repartitioning before a partition is joined in memory
+	static final int MAX_DEPTH = 4;
+	static final int MAX_PARTITIONS = 64;
+
+	private DbIterator build;
+	private DbIterator probe;
+	private int buildKey;
+	private int probeKey;
+	// true if build is child1, i.e. its fields come first in the output
+	private boolean buildIsLeft;
+	private int memoryPages;
+	private int depth;
+	private TupleDesc td;
+	private int partitions;
+
+	// build tuples of the partitions that are still in memory; null for
+	// spilled partitions
+	private ArrayList<ArrayList<Tuple>> resident;
+	// the resident build tuples by join field
+	private HashMap<Field, ArrayList<Tuple>> table;
+	// spill files and their unwritten last page, by partition
+	private HeapFile[] buildSpill;
+	private HeapFile[] probeSpill;
+	private ArrayList<ArrayList<Tuple>> buildBuf;
+	private ArrayList<ArrayList<Tuple>> probeBuf;
+	private int[] buildCount;
+	private int[] probeCount;
+
+	// the probe tuple being joined and its matches
+	private Tuple current;
+	private ArrayList<Tuple> matches;
+	private int matchPos;
+	// set once probe is used up; then the spilled partitions are joined
+	private boolean probed;
+	private int nextSpilled;
+	// the join of spilled partition subPart
+	private HybridHashJoin sub;
+	private int subPart;
+
+	/**
+	 * Constructor. Joins two children on the equality of a field of each,
+	 * using at most about memoryPages pages of memory.
+	 *
+	 * @param p
+	 *            The predicate to join on; its operator must be EQUALS
+	 * @param child1
+	 *            Iterator for the left relation to join; it is the one
+	 *            hashed first, so it should be the smaller
+	 * @param child2
+	 *            Iterator for the right relation to join
+	 * @param memoryPages
+	 *            the memory budget, in pages
+	 */
+	public HybridHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memoryPages) {
+		this(child1, p.getField1(), child2, p.getField2(), true, memoryPages, 0);
+		if (p.getOp() != Predicate.Op.EQUALS)
+			throw new IllegalArgumentException("Hash join needs an EQUALS predicate, not " + p.getOp());
+	}
+
+	/**
+	 * Joins two children with a memory budget of BufferPool.DEFAULT_PAGES
+	 * pages.
+	 */
+	public HybridHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+		this(p, child1, child2, BufferPool.DEFAULT_PAGES);
+	}
+
+	private HybridHashJoin(DbIterator build, int buildKey, DbIterator probe, int probeKey,
+			boolean buildIsLeft, int memoryPages, int depth) {
+		this.build = build;
+		this.buildKey = buildKey;
+		this.probe = probe;
+		this.probeKey = probeKey;
+		this.buildIsLeft = buildIsLeft;
+		this.memoryPages = Math.max(2, memoryPages);
+		this.depth = depth;
+		this.partitions = Math.max(2, Math.min(MAX_PARTITIONS, this.memoryPages / 2));
+		if (buildIsLeft)
+			td = TupleDesc.combine(build.getTupleDesc(), probe.getTupleDesc());
+		else
+			td = TupleDesc.combine(probe.getTupleDesc(), build.getTupleDesc());
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Opens the children and partitions the build child.
+	 */
+	public void open() throws DbException, NoSuchElementException,
+			TransactionAbortedException {
+		build.open();
+		probe.open();
+		resident = new ArrayList<ArrayList<Tuple>>();
+		for (int i = 0; i < partitions; i++)
+			resident.add(new ArrayList<Tuple>());
+		buildSpill = new HeapFile[partitions];
+		probeSpill = new HeapFile[partitions];
+		buildBuf = new ArrayList<ArrayList<Tuple>>();
+		probeBuf = new ArrayList<ArrayList<Tuple>>();
+		for (int i = 0; i < partitions; i++) {
+			buildBuf.add(null);
+			probeBuf.add(null);
+		}
+		buildCount = new int[partitions];
+		probeCount = new int[partitions];
+		TupleDesc buildTd = build.getTupleDesc();
+		long budget = (long)memoryPages * BufferPool.PAGE_SIZE;
+		// past the last level everything stays in memory
+		if (depth >= MAX_DEPTH)
+			budget = Long.MAX_VALUE;
+		long used = 0;
+		int spilled = 0;
+		boolean partitioned = false;
+		try {
+			while (build.hasNext()) {
+				Tuple t = build.next();
+				int part = partition(t.getField(buildKey));
+				buildCount[part]++;
+				ArrayList<Tuple> r = resident.get(part);
+				if (r == null) {
+					spill(buildSpill, buildBuf, part, buildTd, t);
+					continue;
+				}
+				r.add(t);
+				used += buildTd.getSize();
+				while (used > budget && spilled < partitions) {
+					int victim = largestResident();
+					ArrayList<Tuple> tuples = resident.get(victim);
+					resident.set(victim, null);
+					used -= (long)tuples.size() * buildTd.getSize();
+					used += BufferPool.PAGE_SIZE;
+					spilled++;
+					buildSpill[victim] = newSpillFile(buildTd);
+					for (int i = 0; i < tuples.size(); i++)
+						spill(buildSpill, buildBuf, victim, buildTd, tuples.get(i));
+				}
+			}
+			for (int i = 0; i < partitions; i++)
+				flush(buildSpill, buildBuf, i);
+			partitioned = true;
+		} catch (IOException e) {
+			throw new DbException("Could not spill join partition: " + e);
+		} finally {
+			// close is not called for an open that fails
+			if (!partitioned)
+				dropSpills();
+		}
+		table = new HashMap<Field, ArrayList<Tuple>>();
+		for (int i = 0; i < partitions; i++) {
+			ArrayList<Tuple> r = resident.get(i);
+			if (r == null)
+				continue;
+			for (int j = 0; j < r.size(); j++) {
+				Tuple t = r.get(j);
+				ArrayList<Tuple> bucket = table.get(t.getField(buildKey));
+				if (bucket == null) {
+					bucket = new ArrayList<Tuple>(1);
+					table.put(t.getField(buildKey), bucket);
+				}
+				bucket.add(t);
+			}
+			// the table holds them now
+			r.clear();
+		}
+		current = null;
+		matches = null;
+		probed = false;
+		nextSpilled = 0;
+		sub = null;
+	}
+
+	/**
+	 * Closes the children and removes the spill files.
+	 */
+	public void close() {
+		super.close();
+		build.close();
+		probe.close();
+		if (sub != null)
+			sub.close();
+		sub = null;
+		table = null;
+		resident = null;
+		matches = null;
+		current = null;
+		dropSpills();
+		buildSpill = null;
+		probeSpill = null;
+		buildBuf = null;
+		probeBuf = null;
+	}
+
+	/**
+	 * Starts over; the children are partitioned again.
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * Returns the next tuple of the join, or null if there are no more.
+	 *
+	 * @see Join#readNext
+	 */
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (!probed) {
+			if (matches != null && matchPos < matches.size()) {
+				Tuple m = matches.get(matchPos++);
+				return buildIsLeft ? Join.concat(td, m, current) : Join.concat(td, current, m);
+			}
+			matches = null;
+			if (!probe.hasNext()) {
+				finishProbe();
+				break;
+			}
+			current = probe.next();
+			Field key = current.getField(probeKey);
+			int part = partition(key);
+			if (resident.get(part) != null) {
+				matches = table.get(key);
+				matchPos = 0;
+			} else {
+				probeCount[part]++;
+				try {
+					spill(probeSpill, probeBuf, part, probe.getTupleDesc(), current);
+				} catch (IOException e) {
+					throw new DbException("Could not spill join partition: " + e);
+				}
+			}
+		}
+		// join the spilled partitions, one pair at a time
+		while (true) {
+			if (sub != null) {
+				if (sub.hasNext())
+					return sub.next();
+				sub.close();
+				sub = null;
+				dropPartition(subPart);
+			}
+			while (nextSpilled < partitions
+					&& (buildSpill[nextSpilled] == null || probeSpill[nextSpilled] == null)) {
+				// nothing spilled on one side, so nothing matches
+				dropPartition(nextSpilled);
+				nextSpilled++;
+			}
+			if (nextSpilled >= partitions)
+				return null;
+			int i = nextSpilled++;
+			subPart = i;
+			// hash the smaller side of the pair
+			if (buildCount[i] <= probeCount[i])
+				sub = new HybridHashJoin(new SpillScan(buildSpill[i]), buildKey,
+						new SpillScan(probeSpill[i]), probeKey, buildIsLeft, memoryPages, depth + 1);
+			else
+				sub = new HybridHashJoin(new SpillScan(probeSpill[i]), probeKey,
+						new SpillScan(buildSpill[i]), buildKey, !buildIsLeft, memoryPages, depth + 1);
+			sub.open();
+		}
+	}
+
+	/** Writes out what is left of the probe side and frees the table. */
+	private void finishProbe() throws DbException, TransactionAbortedException {
+		probed = true;
+		table = null;
+		current = null;
+		try {
+			for (int i = 0; i < partitions; i++)
+				flush(probeSpill, probeBuf, i);
+		} catch (IOException e) {
+			throw new DbException("Could not spill join partition: " + e);
+		}
+	}
+
+	/** Returns the partition of a join field value at this level. */
+	private int partition(Field f) {
+		int h = f.hashCode() ^ (depth * 0x9E3779B9);
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return (h & 0x7fffffff) % partitions;
+	}
+
+	private int largestResident() {
+		int victim = -1;
+		for (int i = 0; i < partitions; i++) {
+			ArrayList<Tuple> r = resident.get(i);
+			if (r != null && (victim < 0 || r.size() > resident.get(victim).size()))
+				victim = i;
+		}
+		return victim;
+	}
+
+	/**
+	 * Adds t to the spill buffer of partition part, creating the spill
+	 * file if needed, and writes the buffer once it fills a page of that
+	 * file.
+	 */
+	private void spill(HeapFile[] files, ArrayList<ArrayList<Tuple>> bufs, int part,
+			TupleDesc spillTd, Tuple t) throws IOException, DbException, TransactionAbortedException {
+		if (files[part] == null)
+			files[part] = newSpillFile(spillTd);
+		// the two sides can have tuples of different sizes
+		int perPage = tuplesPerPage(files[part].getTupleDesc());
+		ArrayList<Tuple> buf = bufs.get(part);
+		if (buf == null) {
+			buf = new ArrayList<Tuple>(perPage);
+			bufs.set(part, buf);
+		}
+		buf.add(t);
+		if (buf.size() >= perPage)
+			flush(files, bufs, part);
+	}
+
+	private void flush(HeapFile[] files, ArrayList<ArrayList<Tuple>> bufs, int part)
+			throws IOException, DbException, TransactionAbortedException {
+		ArrayList<Tuple> buf = bufs.get(part);
+		if (buf == null || buf.isEmpty())
+			return;
+		files[part].bulkLoad(null, new TupleIterator(files[part].getTupleDesc(), buf));
+		buf.clear();
+	}
+
+	/** Returns how many tuples of schema td fit on a HeapPage. */
+	private static int tuplesPerPage(TupleDesc td) {
+		return (BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1);
+	}
+
+	/** Creates an empty temporary HeapFile for a partition. */
+	private HeapFile newSpillFile(TupleDesc spillTd) throws IOException {
+		File f = File.createTempFile("hashjoin", ".dat");
+		f.deleteOnExit();
+		return new HeapFile(f, spillTd);
+	}
+
+	/** Deletes the spill files of every partition. */
+	private void dropSpills() {
+		if (buildSpill == null)
+			return;
+		for (int i = 0; i < partitions; i++)
+			dropPartition(i);
+	}
+
+	/** Deletes the spill files of partition part. */
+	private void dropPartition(int part) {
+		drop(buildSpill[part]);
+		drop(probeSpill[part]);
+		buildSpill[part] = null;
+		probeSpill[part] = null;
+	}
+
+	private static void drop(HeapFile hf) {
+		if (hf == null)
+			return;
+		try {
+			hf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		hf.getFile().delete();
+		new File(hf.getFile().getPath() + ".fsm").delete();
+	}
+
+	/**
+	 * Reads the tuples of a spill file straight from the file; the file is
+	 * private to the join, so it needs neither locks nor the BufferPool.
+	 */
+	private static class SpillScan extends AbstractDbIterator {
+		private HeapFile hf;
+		private int pageNo;
+		private Iterator<Tuple> it;
+
+		SpillScan(HeapFile hf) {
+			this.hf = hf;
+		}
+
+		public TupleDesc getTupleDesc() {
+			return hf.getTupleDesc();
+		}
+
+		public void open() {
+			pageNo = 0;
+			it = null;
+		}
+
+		public void close() {
+			super.close();
+			it = null;
+		}
+
+		public void rewind() {
+			open();
+		}
+
+		protected Tuple readNext() {
+			while (it == null || !it.hasNext()) {
+				if (pageNo >= hf.numPages())
+					return null;
+				it = ((HeapPage)hf.readPage(new HeapPageId(hf.getId(), pageNo++))).iterator();
+			}
+			return it.next();
+		}
+	}
+}
@@ -2,6 +2,8 @@ package simpledb;
 
 import java.io.*;
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -22,6 +24,10 @@ public class IndexFile implements DbFile {
     static int TotNumPages = 1;
     boolean heapTableIDSet = false;
     int heapId = -1; // table on 
+    final int pageSize;
+    // opened on first use and shared by all readers and writers
+    private volatile FileChannel channel;
+    private final Object channelLock = new Object();
     
     /**
      * Constructor
@@ -38,6 +44,17 @@ public class IndexFile implements DbFile {
      * @param u A boolean that specifies if the index can have duplicate keys or not
      */
     public IndexFile(File ixf, boolean u) {
+    	this(ixf, u, BufferPool.PAGE_SIZE);
+    }
+
+    /**
+     * Creates an IndexFile whose pages are pageSize bytes long.
+     *
+     * @param pageSize the page size, see {@link BufferPool#checkPageSize}
+     */
+    public IndexFile(File ixf, boolean u, int pageSize) {
+    	BufferPool.checkPageSize(pageSize);
+    	this.pageSize = pageSize;
     	file = ixf;
     	hasDuplicates = u;
     	TotNumPages = (int) file.length()/BufferPool.DEFAULT_PAGES;
@@ -75,16 +92,21 @@ public class IndexFile implements DbFile {
     	for(int i=0; i<NUM_OF_BUCKETS; i++) {
     		pid = new IndexPageId(fid, i, 0);
     		try {
-				page = new IndexPage(pid, new byte[BufferPool.PAGE_SIZE]);
+				page = new IndexPage(pid, new byte[pageSize]);
 				page.setOverflowPageNum(-1);
         		Database.getBufferPool().forcePage(page, tid);
+        		Database.getBufferPool().unpinPage(pid);
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			} catch (DbException e) {
 				e.printStackTrace();
+			} catch (TransactionAbortedException e) {
+				e.printStackTrace();
 			}
     	}
+    	// write the empty buckets out and drop the locks init took on them
+    	Database.getBufferPool().transactionComplete(tid, true);
     	TotNumPages = NUM_OF_BUCKETS;
     }
 
@@ -103,6 +125,11 @@ public class IndexFile implements DbFile {
     	this.heapId = hid;
     }
 
+    /** @return the id of the table this index is built on */
+    public int getHeapId() {
+    	return heapId;
+    }
+
     //set the TupleDesc for tuples (index entries) of the IndexFile
     //
     /*TupleDesc is fixed for an IndexEntry. An index entry has 3 fields showing (key, pgnu, slotnu) while
@@ -133,22 +160,20 @@ public class IndexFile implements DbFile {
     	//Some code goes here
     	
     	int pageNum = pid.pageno();
-    	int pageSize = Database.getBufferPool().PAGE_SIZE;
     	byte[] readBuffer = new byte[pageSize];
-    	FileInputStream fis = null;
-    	if( pageNum*pageSize + pageSize >= file.length()){
+    	long offSet = (long)pageNum*pageSize;
+    	if( offSet + pageSize > file.length()){
     		throw new NoSuchElementException();
     	}
     	
     	try {
-			fis = new FileInputStream(file);
-			fis.skip(pageNum*pageSize);
-			fis.read(readBuffer, 0, pageSize);
-			fis.close();
-			
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+    		// positional reads may come back short; keep reading until the page is full
+    		ByteBuffer buf = ByteBuffer.wrap(readBuffer);
+    		FileChannel ch = channel();
+    		while(buf.hasRemaining()){
+    			if(ch.read(buf, offSet + buf.position()) < 0)
+    				break;
+    		}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -186,14 +211,50 @@ public class IndexFile implements DbFile {
     	byte[] byteArray = iPage.getPageData();
     	
     	int pageNumber = iPage.getId().pageno();
-    	int offSet = (pageNumber)*BufferPool.PAGE_SIZE;
-    	
-    	RandomAccessFile oStream = null;
-    	
-    	oStream = new RandomAccessFile(file,"rw");
-    	oStream.skipBytes(offSet);
-    	oStream.write(byteArray);
+    	long offSet = (long)pageNumber*pageSize;
     	
+    	ByteBuffer buf = ByteBuffer.wrap(byteArray);
+    	FileChannel ch = channel();
+    	while(buf.hasRemaining())
+    		ch.write(buf, offSet + buf.position());
+    }
+
+    /**
+     * Forces the pages written with writePage out to stable storage.
+     *
+     * @throws IOException if the file cannot be synced
+     */
+    public void sync() throws IOException {
+    	channel().force(false);
+    }
+
+    // see DbFile.java for javadocs
+    public int getPageSize() {
+    	return pageSize;
+    }
+
+    /**
+     * Closes the file channel.  The next read or write opens it again.
+     */
+    public void close() throws IOException {
+    	synchronized (channelLock) {
+    		if(channel!=null){
+    			channel.close();
+    			channel = null;
+    		}
+    	}
+    }
+
+    private FileChannel channel() throws IOException {
+    	FileChannel ch = channel;
+    	if(ch==null){
+    		synchronized (channelLock) {
+    			if(channel==null)
+    				channel = new RandomAccessFile(file, "rw").getChannel();
+    			ch = channel;
+    		}
+    	}
+    	return ch;
     }
 
     /** Create an Index entry for the the tuple t
@@ -247,34 +308,40 @@ public class IndexFile implements DbFile {
     	
     	IndexPage page = (IndexPage)bp.getPage(tid,new IndexPageId(getId(), bucketNum, 0), Permissions.READ_WRITE);//adPage(new IndexPageId(getId(), bucketNum, 0)); 
     	
-    	//System.out.println("Added to page: "+page.getId().pageno()+" which had "+page.getNumEmptySlots()+" empty slots and overflow page "+page.getOverflowPgnu());
-    	while(page.getNumEmptySlots() == 0){
-    		if(page.getOverflowPgnu()<NUM_OF_BUCKETS){
-    			page.setOverflowPageNum(TotNumPages);
-    			overFlowLink.add(page);
-    			//page.markDirty(true,tid);
-    			page = new IndexPage(new IndexPageId(fid, TotNumPages++, 1), new byte[Database.getBufferPool().PAGE_SIZE]);
-    			page.setOverflowPageNum(-1);
-        		Database.getBufferPool().forcePage(page, tid);
+    	try {
+    		//System.out.println("Added to page: "+page.getId().pageno()+" which had "+page.getNumEmptySlots()+" empty slots and overflow page "+page.getOverflowPgnu());
+    		while(page.getNumEmptySlots() == 0){
+    			IndexPage prev = page;
+    			if(page.getOverflowPgnu()<NUM_OF_BUCKETS){
+    				page.setOverflowPageNum(TotNumPages);
+    				overFlowLink.add(page);
+    				page.markDirty(true,tid);
+    				page = new IndexPage(new IndexPageId(fid, TotNumPages++, 1), new byte[pageSize]);
+    				page.setOverflowPageNum(-1);
+    				Database.getBufferPool().forcePage(page, tid);
     		
+    			}
+    			else{
+    				page = (IndexPage)bp.getPage(tid,new IndexPageId(getId(), page.getOverflowPgnu(), 1), Permissions.READ_WRITE);//readPage(new IndexPageId(fid, page.getOverflowPgnu(), 1));
+    			}
+    			bp.unpinPage(prev.getId());
     		}
-    		else{
-    			page = (IndexPage)bp.getPage(tid,new IndexPageId(getId(), page.getOverflowPgnu(), 1), Permissions.READ_WRITE);//readPage(new IndexPageId(fid, page.getOverflowPgnu(), 1));
-    		}
-    	}
     	
-    	overFlowLink.add(page);
-    	Type[] types = new Type[3];
-    	types[0] = f.getType();
-    	types[2] = types[1] = Type.INT_TYPE;
-    	Tuple u = new Tuple(new TupleDesc(types));
-    	u.setField(0, f);
+    		overFlowLink.add(page);
+    		Type[] types = new Type[3];
+    		types[0] = f.getType();
+    		types[2] = types[1] = Type.INT_TYPE;
+    		Tuple u = new Tuple(new TupleDesc(types));
+    		u.setField(0, f);
 //    	System.out.println("Page: "+t.getRecordId().getPageId().pageno()+" Tuple: "+t.getRecordId().tupleno());
 //    	System.out.println("Inserted into Page: "+page.getId().pageno());
-    	u.setField(1, new IntField(t.getRecordId().getPageId().pageno()));
-    	u.setField(2, new IntField(t.getRecordId().tupleno()));
-    	page.addTuple(u);
-		bp.dirtyPage(page, true, tid);
+    		u.setField(1, new IntField(t.getRecordId().getPageId().pageno()));
+    		u.setField(2, new IntField(t.getRecordId().tupleno()));
+    		page.addTuple(u);
+    		bp.dirtyPage(page, true, tid);
+    	} finally {
+    		bp.unpinPage(page.getId());
+    	}
 //    	System.out.println("U Page: "+u.getRecordId().getPageId().pageno());
 //    	System.out.println("Inserted tuple: "+u.toString()+" into bucket: "+page.getId().pageno());
     	return overFlowLink;
@@ -309,12 +376,20 @@ public class IndexFile implements DbFile {
     	u.setField(2, new IntField(t.getRecordId().tupleno()));
     	
     	boolean deleted = false;
-    	while(!deleted) {
-    		deleted = page.deleteTuple(u);
-    		if(!deleted && page.getOverflowPgnu()==-1)
-    			throw new DbException("Tuple not found");
-    		else if(!deleted)
-    			page = (IndexPage)bp.getPage(tid,new IndexPageId(getId(), page.getOverflowPgnu(), 1), Permissions.READ_WRITE);//readPage(new IndexPageId(file.getAbsolutePath().hashCode(), page.getOverflowPgnu(), 1));
+    	try {
+    		while(!deleted) {
+    			deleted = page.deleteTuple(u);
+    			if(!deleted && page.getOverflowPgnu()==-1)
+    				throw new DbException("Tuple not found");
+    			else if(!deleted){
+    				IndexPage prev = page;
+    				page = (IndexPage)bp.getPage(tid,new IndexPageId(getId(), page.getOverflowPgnu(), 1), Permissions.READ_WRITE);//readPage(new IndexPageId(file.getAbsolutePath().hashCode(), page.getOverflowPgnu(), 1));
+    				bp.unpinPage(prev.getId());
+    			}
+    		}
+    		page.markDirty(true, tid);
+    	} finally {
+    		bp.unpinPage(page.getId());
     	}
     		
     	return page;
@@ -345,6 +420,8 @@ public class IndexFile implements DbFile {
     	IndexPage iterPage = null;
     	Iterator<Tuple> pageIterator = null;
     	BufferPool buffPool = Database.getBufferPool();
+    	// the key is field 0 of an index entry, whatever field of the table
+    	// it was taken from
     	if(ap.getOp()==Predicate.Op.EQUALS) {
     		pid = new IndexPageId(this.getId(), HashFunction.getHash(ap.getField()), 0);
     		iterPage = (IndexPage) buffPool.getPage(tid, pid, Permissions.READ_ONLY);
@@ -354,15 +431,18 @@ public class IndexFile implements DbFile {
     			if(!pageIterator.hasNext()) {
     				if(iterPage.getOverflowPgnu()>=NUM_OF_BUCKETS) {
     					 pid = new IndexPageId(this.getId(), iterPage.getOverflowPgnu(), 1);
+    					 buffPool.unpinPage(iterPage.getId());
     					 iterPage = (IndexPage) buffPool.getPage(tid, pid, Permissions.READ_ONLY);
     					 pageIterator = iterPage.iterator();
     				}
-    				else
+    				else {
+    					buffPool.unpinPage(iterPage.getId());
     					end = true;
+    				}
     			}
     			else {
     				t = pageIterator.next();
-                	if(ap.filter(t, indexFieldNum)){
+                	if(ap.filter(t, 0)){
                 		RecordId rid = new RecordId(new HeapPageId(heapId, ((IntField)(t.getField(1))).getValue()),
                 					((IntField)(t.getField(2))).getValue());
         				returnList.add(rid);
@@ -381,15 +461,18 @@ public class IndexFile implements DbFile {
                 if(!pageIterator.hasNext()) {
                     if(iterPage.getOverflowPgnu()>=NUM_OF_BUCKETS) {
                         pid = new IndexPageId(this.getId(), iterPage.getOverflowPgnu(), 1);
+                        buffPool.unpinPage(iterPage.getId());
                         iterPage = (IndexPage) buffPool.getPage(tid, pid, Permissions.READ_ONLY);
                         pageIterator = iterPage.iterator();
                     }
-                    else
+                    else {
+                        buffPool.unpinPage(iterPage.getId());
                         end = true;
+                    }
                 }
                 else {
                 	t = pageIterator.next();
-                	if(ap.filter(t, indexFieldNum)){
+                	if(ap.filter(t, 0)){
                 		RecordId rid = new RecordId(new HeapPageId(heapId, ((IntField)(t.getField(1))).getValue()),
                 					((IntField)(t.getField(2))).getValue());
         				returnList.add(rid);
@@ -438,6 +521,7 @@ public class IndexFile implements DbFile {
                         pid = new IndexPageId(this.getId(), iterPage.getOverflowPgnu(), 1);
                         BufferPool buffPool = Database.getBufferPool();
                         try {
+                            buffPool.unpinPage(iterPage.getId());
                             iterPage = (IndexPage) buffPool.getPage(tid, pid, Permissions.READ_ONLY);
                         } catch (TransactionAbortedException e) {
                             // TODO Auto-generated catch block
@@ -448,12 +532,14 @@ public class IndexFile implements DbFile {
                         }
                         pageIterator = iterPage.iterator();
                     }
-                    else
+                    else {
+                        Database.getBufferPool().unpinPage(iterPage.getId());
                         end = true;
+                    }
                 }
                 else {
                 	t = pageIterator.next();
-                	if(ap.filter(t, indexFieldNum)){
+                	if(ap.filter(t, 0)){
                 		returnList.add(t);//t.getRecordId());
         			}
                 }
@@ -506,7 +592,7 @@ public class IndexFile implements DbFile {
 
     }
 
-	//Creating an iterator for going through all the entries stored in this index file
+//Creating an iterator for going through all the entries stored in this index file
     private class IndexFileIterator implements DbFileIterator{
         
         Iterator<Tuple> tupleItr;
@@ -584,6 +670,7 @@ public class IndexFile implements DbFile {
                         pid = new IndexPageId(this.getId(), iterPage.getOverflowPgnu(), 1);
                         BufferPool buffPool = Database.getBufferPool();
                         try {
+                            buffPool.unpinPage(iterPage.getId());
                             iterPage = (IndexPage) buffPool.getPage(tid, pid, Permissions.READ_ONLY);
                         } catch (TransactionAbortedException e) {
                             // TODO Auto-generated catch block
@@ -594,8 +681,10 @@ public class IndexFile implements DbFile {
                         }
                         pageIterator = iterPage.iterator();
                     }
-                    else
+                    else {
+                        Database.getBufferPool().unpinPage(iterPage.getId());
                         end = true;
+                    }
                 }
                 else {
                     tupleList.add(pageIterator.next());
@@ -636,7 +725,7 @@ public class IndexFile implements DbFile {
      */
     private int headerBytes() {
     	//Some code goes here
-    	int numTuples = (int) Math.floor((BufferPool.PAGE_SIZE*8) / (getTupleDesc().getSize()* 8 + 1));
+    	int numTuples = (int) Math.floor((pageSize*8) / (getTupleDesc().getSize()* 8 + 1));
     	return (int)Math.ceil(numTuples/8.0);
     }
 }
\ No newline at end of file
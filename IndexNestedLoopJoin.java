@@ -0,0 +1,196 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+
+/**
+ * IndexNestedLoopJoin joins child1 with a table that has an
+ * {@link IndexFile} on its join field.  Instead of scanning the table, it
+ * looks up each child1 tuple's key with {@link IndexFile#search} and
+ * fetches the matching tuples by RecordId through the BufferPool, so a
+ * selective join reads only the pages that hold matches.
+ * <p>
+ * child1 is read in batches of BATCH_TUPLES tuples, which are sorted by
+ * the index bucket of their key, and then by key.  Lookups that go to the
+ * same bucket then follow each other while its pages are still in the
+ * BufferPool, and a key that occurs several times in a batch is looked
+ * up only once.  Output tuples therefore do not come in child1's order;
+ * as with Join, each has the fields of child1 followed by those of the
+ * indexed table.
+ * <p>
+ * The index is a hash index, so only EQUALS predicates are supported.
+ */
+public class IndexNestedLoopJoin extends AbstractDbIterator {
+
+	// child1 tuples sorted and looked up together
+	static final int BATCH_TUPLES = 1024;
+
+	private TransactionId tid;
+	private JoinPredicate pred;
+	private DbIterator child1;
+	private IndexFile index;
+	private TupleDesc td;
+
+	private ArrayList<Tuple> batch;
+	private int batchPos;
+	// the child1 tuple being joined and the table tuples with its key
+	private Tuple outer;
+	private Field matchKey;
+	private ArrayList<Tuple> matches;
+	private int matchPos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tid
+	 *            The transaction the index and table pages are read for
+	 * @param p
+	 *            The predicate to join on; its operator must be EQUALS and
+	 *            its second field the one the index is built on
+	 * @param child1
+	 *            Iterator for the left relation to join
+	 * @param index
+	 *            the index on the right relation, which is read through it
+	 */
+	public IndexNestedLoopJoin(TransactionId tid, JoinPredicate p, DbIterator child1, IndexFile index) {
+		if (p.getOp() != Predicate.Op.EQUALS)
+			throw new IllegalArgumentException("Index join needs an EQUALS predicate, not " + p.getOp());
+		if (p.getField2() != index.keyField())
+			throw new IllegalArgumentException("Index is on field " + index.keyField()
+					+ ", not on join field " + p.getField2());
+		this.tid = tid;
+		this.pred = p;
+		this.child1 = child1;
+		this.index = index;
+		this.td = TupleDesc.combine(child1.getTupleDesc(),
+				Database.getCatalog().getTupleDesc(index.getHeapId()));
+	}
+
+	/**
+	 * Constructor for joining with a table through the index the catalog
+	 * has on its join field.
+	 *
+	 * @throws NoSuchElementException if the table has no index on the
+	 *             join field
+	 */
+	public IndexNestedLoopJoin(TransactionId tid, JoinPredicate p, DbIterator child1, int tableid) {
+		this(tid, p, child1, findIndex(tableid, p.getField2()));
+	}
+
+	private static IndexFile findIndex(int tableid, int field) {
+		ArrayList<IndexFile> indexes = Database.getCatalog().getIndexes(tableid);
+		for (int i = 0; i < indexes.size(); i++)
+			if (indexes.get(i).keyField() == field)
+				return indexes.get(i);
+		throw new NoSuchElementException("Table " + tableid + " has no index on field " + field);
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	public void open() throws DbException, NoSuchElementException,
+			TransactionAbortedException {
+		child1.open();
+		batch = new ArrayList<Tuple>();
+		batchPos = 0;
+		outer = null;
+		matchKey = null;
+		matches = null;
+	}
+
+	public void close() {
+		super.close();
+		child1.close();
+		batch = null;
+		outer = null;
+		matches = null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		child1.rewind();
+		batch.clear();
+		batchPos = 0;
+		outer = null;
+		matchKey = null;
+		matches = null;
+	}
+
+	/**
+	 * Returns the next tuple of the join, or null if there are no more.
+	 *
+	 * @see Join#readNext
+	 */
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (true) {
+			if (matches != null && matchPos < matches.size())
+				return Join.concat(td, outer, matches.get(matchPos++));
+			if (batchPos >= batch.size() && !nextBatch())
+				return null;
+			outer = batch.get(batchPos++);
+			Field key = outer.getField(pred.getField1());
+			// the batch is sorted, so equal keys follow each other
+			if (matchKey == null || !matchKey.equals(key)) {
+				matchKey = key;
+				matches = lookup(key);
+			}
+			matchPos = 0;
+		}
+	}
+
+	/**
+	 * Reads the next batch of child1 tuples and sorts it by index bucket
+	 * and key.
+	 *
+	 * @return false if child1 is used up
+	 */
+	private boolean nextBatch() throws TransactionAbortedException, DbException {
+		batch.clear();
+		batchPos = 0;
+		while (batch.size() < BATCH_TUPLES && child1.hasNext())
+			batch.add(child1.next());
+		final int f = pred.getField1();
+		Collections.sort(batch, new Comparator<Tuple>() {
+			public int compare(Tuple a, Tuple b) {
+				Field ka = a.getField(f);
+				Field kb = b.getField(f);
+				int ha = HashFunction.getHash(ka);
+				int hb = HashFunction.getHash(kb);
+				if (ha != hb)
+					return ha < hb ? -1 : 1;
+				if (ka.compare(Predicate.Op.EQUALS, kb))
+					return 0;
+				return ka.compare(Predicate.Op.LESS_THAN, kb) ? -1 : 1;
+			}
+		});
+		// lookups are not reused from one batch to the next
+		matchKey = null;
+		return !batch.isEmpty();
+	}
+
+	/**
+	 * Returns the tuples of the indexed table whose join field is key,
+	 * fetched by the RecordIds the index has for it.
+	 */
+	private ArrayList<Tuple> lookup(Field key) throws TransactionAbortedException, DbException {
+		ArrayList<RecordId> rids = index.search(tid, new AccessPredicate(Predicate.Op.EQUALS, key));
+		ArrayList<Tuple> found = new ArrayList<Tuple>(rids.size());
+		BufferPool bp = Database.getBufferPool();
+		for (int i = 0; i < rids.size(); i++) {
+			RecordId rid = rids.get(i);
+			HeapPage page = (HeapPage) bp.getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+			Tuple t;
+			try {
+				t = page.getTuple(rid.tupleno());
+			} finally {
+				bp.unpinPage(rid.getPageId());
+			}
+			// skip entries the table no longer agrees with
+			if (t != null && t.getField(pred.getField2()).equals(key))
+				found.add(t);
+		}
+		return found;
+	}
+}
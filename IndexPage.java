@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Index Page stores a bucket of IndexFile and implements the
@@ -24,7 +25,10 @@ public class IndexPage implements Page {
     Tuple tuples[];
     byte header[];
     int numSlots;
+    // the length of the data the page was built from
+    int pageSize;
     ArrayList<Tuple> indices = new ArrayList<Tuple>();
+    byte[] oldData;
     //You may need to define new attribute for this class based on your design
 
 
@@ -35,7 +39,7 @@ public class IndexPage implements Page {
      * from disk.
      * The format of an IndexPage is
      * a 32-bit overflowPgnu plus a set of 32-bit header words indicating the
-     * slot of the page that are in use, and plus (BufferPool.PAGE_SIZE/tuple
+     * slot of the page that are in use, and plus (page size/tuple
      * size) tuple slots, where tuple size is the size of tuples (index entries) in this
      * database table
      * The number of 32-bitheader words is equal to:
@@ -44,8 +48,10 @@ public class IndexPage implements Page {
     public IndexPage(IndexPageId id, byte[] data) throws IOException {
     	//Some code goes here
     	this.pid = id;
+    	this.pageSize = data.length;
         this.numSlots = maxNumTuples();
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.oldData = data.clone();
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
         // read the overflow page number
@@ -74,7 +80,7 @@ public class IndexPage implements Page {
     }	
 
     private int maxNumTuples() {
-        return (int) Math.floor((BufferPool.PAGE_SIZE*8) / (Database.getCatalog().getTupleDesc(pid.getTableId()).getSize()* 8 + 1));
+        return (int) Math.floor((pageSize*8) / (Database.getCatalog().getTupleDesc(pid.getTableId()).getSize()* 8 + 1));
     }
     
     /**
@@ -128,10 +134,11 @@ public class IndexPage implements Page {
     }
 
     /**
-     * Needed for recovery - NOT REQUIRED FOR CS222
+     * Make the current contents of this page its before image, e.g. once
+     * the transaction that modified it has committed
      */
     public void setBeforeImage() {
-    	//Not needed for phase 2 (CS222 @ UCI can ignore it)
+    	oldData = getPageData();
     }
 
     /**
@@ -155,77 +162,36 @@ public class IndexPage implements Page {
      */
     public byte[] getPageData() {
     	//Some code goes here
-    	int len = BufferPool.PAGE_SIZE;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+    	// a new array is already zero, so empty slots and the padding need
+    	// no writes; everything else goes in with bulk puts
+    	byte[] data = new byte[pageSize];
+    	ByteBuffer buf = ByteBuffer.wrap(data);
 
-        // create the pgno of the next overflow page
-        try {
-        	dos.writeInt(nextPage);
-        } catch(IOException e) {
-        	e.printStackTrace();
-        }
-        
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        // the pgno of the next overflow page, then the header of the page
+        buf.putInt(nextPage);
+        buf.put(header);
 
-        // create the tuples
+        // the tuples
+        int base = META_OVERFLOW_LENGTH + header.length;
         for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!getSlot(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+            if (!getSlot(i))
                 continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
+            buf.position(base + i * td.getSize());
+            for (int j=0; j<td.numFields(); j++)
+                tuples[i].getField(j).serialize(buf);
         }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data;
     }
 
     /** Return a view of this page before it was modified
         -- used by recovery */
     public IndexPage getBeforeImage(){
-        //Not needed for phase 2 (CS222 @ UCI can ignore it)
+        try {
+            return new IndexPage(pid, oldData);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         return null;
     }
 
@@ -408,7 +374,7 @@ public class IndexPage implements Page {
      */
     public static byte[] createEmptyIndexPageData(int tableid) {
     	//Some code goes here
-    	int len = BufferPool.PAGE_SIZE;
+    	int len = Database.getCatalog().getDbFile(tableid).getPageSize();
         return new byte[len];
     }
 
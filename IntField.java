@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single integer.
@@ -37,6 +38,10 @@ public class IntField implements Field {
         dos.writeInt(value);
     }
 
+    public void serialize(ByteBuffer buf) {
+        buf.putInt(value);
+    }
+
     /**
      * Compare the specified field to the value of this Field.
      * Return semantics are as specified by Field.compare
@@ -47,25 +52,32 @@ public class IntField implements Field {
     public boolean compare(Predicate.Op op, Field val) {
 
         IntField iVal = (IntField) val;
+        return compare(op, value, iVal.value);
+    }
 
+    /**
+     * Compares two ints with the semantics of Field.compare, without
+     * wrapping them in IntFields first.
+     */
+    static boolean compare(Predicate.Op op, int value, int other) {
         switch (op) {
         case EQUALS:
-            return value == iVal.value;
+            return value == other;
 
         case GREATER_THAN:
-            return value > iVal.value;
+            return value > other;
 
         case GREATER_THAN_OR_EQ:
-            return value >= iVal.value;
+            return value >= other;
 
         case LESS_THAN:
-            return value < iVal.value;
+            return value < other;
 
         case LESS_THAN_OR_EQ:
-            return value <= iVal.value;
+            return value <= other;
 
     case LIKE:
-        return value == iVal.value;
+        return value == other;
         }
 
         return false;
@@ -1,36 +1,42 @@
 package simpledb;
 
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.ListIterator;
 import java.util.NoSuchElementException;
 
-import sun.net.www.content.image.jpeg;
-
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * Equi-joins are handed to a {@link HashJoin}, and other comparisons of
+ * children that are both sorted on their join fields by an OrderBy to a
+ * {@link SortMergeJoin}; the rest are evaluated with a block nested loops
+ * join.  That reads a block of child1 tuples, as many as fit in a given
+ * number of pages, and matches it against one scan of child2, so child2
+ * is scanned once per block rather than once per child1 tuple.  Either
+ * way the result is produced a tuple at a time as it is asked for, not
+ * when the Join is built.
  */
 public class Join extends AbstractDbIterator {
 
 	private JoinPredicate pred;
 	private DbIterator child1;
 	private DbIterator child2;
-	private boolean generatedJoin;
-
-	private TupleDesc joinTupleTd;
-	private TupleDesc td1;
-	private TupleDesc td2;
-	private boolean bothOpen;
-	private boolean generated;
-	private ArrayList<Tuple> joinList = new ArrayList<Tuple>();
-	private int joinListPtr = 0;
-	private ListIterator<Tuple> iter;
-	JoinIterator ji;
+	private TupleDesc td;
+	// the operator that does the work, if it is not the nested loops join
+	private DbIterator delegate;
+	// pages of child1 tuples the nested loops join holds by default
+	static final int DEFAULT_BLOCK_PAGES = 16;
+	// the block of child1 tuples being matched and how many it may hold
+	private ArrayList<Tuple> block;
+	private int blockTuples;
+	// the child2 tuple being matched against the block, and the next block
+	// tuple to try
+	private Tuple inner;
+	private int blockPos;
 
 	/**
 	 * Constructor. Accepts to children to join and the predicate to join them
 	 * on
-	 * 
+	 *
 	 * @param p
 	 *            The predicate to use to join the children
 	 * @param child1
@@ -39,37 +45,36 @@ public class Join extends AbstractDbIterator {
 	 *            Iterator for the right(inner) relation to join
 	 */
 	public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
+		this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+	}
+
+	/**
+	 * Constructor for a join whose nested loops join reads child1 in blocks
+	 * of blockPages pages.
+	 *
+	 * @param p
+	 *            The predicate to use to join the children
+	 * @param child1
+	 *            Iterator for the left(outer) relation to join
+	 * @param child2
+	 *            Iterator for the right(inner) relation to join
+	 * @param blockPages
+	 *            the size of a block of child1 tuples, in pages of
+	 *            BufferPool.PAGE_SIZE bytes
+	 */
+	public Join(JoinPredicate p, DbIterator child1, DbIterator child2, int blockPages) {
 		this.pred = p;
 		this.child1 = child1;
 		this.child2 = child2;
-		generatedJoin = false;
-
-		td1 = child1.getTupleDesc();
-		td2 = child2.getTupleDesc();
-		Type[] complete = new Type[td1.numFields() + td2.numFields()];
-		int i = 0;
-		for (; i < td1.numFields(); i++) {
-			complete[i] = td1.getType(i);
-		}
-		for (int j=0; j < td2.numFields(); j++) {
-
-			complete[i++] = td2.getType(j);
-		}
-		generated = false;
-		joinTupleTd = new TupleDesc(complete);
-		try {
-			generateJoin();
-		} catch (NoSuchElementException e) {
-			
-			e.printStackTrace();
-		} catch (DbException e) {
-			
-			e.printStackTrace();
-		} catch (TransactionAbortedException e) {
-			
-			e.printStackTrace();
-		}
-		 ji = new JoinIterator(joinList);
+		this.td = TupleDesc.combine(child1.getTupleDesc(), child2.getTupleDesc());
+		this.blockTuples = (int)Math.max(1, (long)blockPages * BufferPool.PAGE_SIZE
+				/ child1.getTupleDesc().getSize());
+		if (p.getOp() == Predicate.Op.EQUALS)
+			delegate = new HashJoin(p, child1, child2);
+		else if (p.getOp() != Predicate.Op.LIKE
+				&& SortMergeJoin.isSortedOn(child1, p.getField1())
+				&& SortMergeJoin.isSortedOn(child2, p.getField2()))
+			delegate = new SortMergeJoin(p, child1, child2);
 	}
 
 	/**
@@ -78,26 +83,42 @@ public class Join extends AbstractDbIterator {
 	 */
 	public TupleDesc getTupleDesc() {
 		// some code goes here
-		return TupleDesc.combine(child1.getTupleDesc(), child2.getTupleDesc());
-
+		return td;
 	}
 
 	public void open() throws DbException, NoSuchElementException,
 			TransactionAbortedException {
-		ji.open();
-		bothOpen = true;
+		if (delegate != null) {
+			delegate.open();
+			return;
+		}
+		child1.open();
+		child2.open();
+		block = new ArrayList<Tuple>();
+		inner = null;
 	}
 
 	public void close() {
-		ji.close();
-		bothOpen = false;
+		super.close();
+		if (delegate != null) {
+			delegate.close();
+			return;
+		}
+		child1.close();
+		child2.close();
+		block = null;
+		inner = null;
 	}
 
 	public void rewind() throws DbException, TransactionAbortedException {
+		if (delegate != null) {
+			delegate.rewind();
+			return;
+		}
 		child1.rewind();
 		child2.rewind();
-		ji.rewind();
-		joinListPtr = 0;
+		block.clear();
+		inner = null;
 	}
 
 	/**
@@ -114,104 +135,51 @@ public class Join extends AbstractDbIterator {
 	 * <p>
 	 * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
 	 * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-	 * 
+	 *
 	 * @return The next matching tuple.
 	 * @see JoinPredicate#filter
 	 */
 	protected Tuple readNext() throws TransactionAbortedException, DbException {
-		if (ji.hasNext())
-			return ji.next();
-		return null;
-	}
-
-	private void generateJoin() throws NoSuchElementException, DbException,
-			TransactionAbortedException {
-
-		Tuple t1;
-		Tuple t2;
-
-		child1.rewind();
-		while (child1.hasNext()) {
-			t1 = child1.next();
-			child2.rewind();
-			while (child2.hasNext()) {
-				t2 = child2.next();
-				if (pred.filter(t1, t2)) {
-					joinList.add(concatTuples(t1, t2));
+		if (delegate != null)
+			return delegate.hasNext() ? delegate.next() : null;
+		while (true) {
+			if (inner != null) {
+				while (blockPos < block.size()) {
+					Tuple outer = block.get(blockPos++);
+					if (pred.filter(outer, inner))
+						return concat(td, outer, inner);
 				}
+				inner = null;
 			}
-
+			if (!block.isEmpty() && child2.hasNext()) {
+				inner = child2.next();
+				blockPos = 0;
+				continue;
+			}
+			// the block has seen all of child2; start it over for the next
+			boolean scanned = !block.isEmpty();
+			block.clear();
+			while (block.size() < blockTuples && child1.hasNext())
+				block.add(child1.next());
+			if (block.isEmpty())
+				return null;
+			if (scanned)
+				child2.rewind();
 		}
-
-//		for (int i = 0; i < joinList.size(); i++) {
-//			System.out.println(joinList.get(i));
-//		}
-//		System.out.println("end of list");
-		iter = joinList.listIterator();
-		generated = true;
 	}
 
-	private Tuple concatTuples(Tuple left, Tuple right) {
-
-		Tuple local = new Tuple(joinTupleTd);
-
-		int l = 0;
-		for (int i = 0; i < td1.numFields(); i++) {
-			local.setField(l, left.getField(i));
-			l++;
-		}
-		for (int i = 0; i < td2.numFields(); i++) {
-			local.setField(l, right.getField(i));
-			l++;
-		}
-
+	/**
+	 * Returns a tuple with schema td holding the fields of left followed by
+	 * those of right.
+	 */
+	static Tuple concat(TupleDesc td, Tuple left, Tuple right) {
+		Tuple local = new Tuple(td);
+		int n1 = left.getTupleDesc().numFields();
+		for (int i = 0; i < n1; i++)
+			local.setField(i, left.getField(i));
+		for (int i = 0; i < td.numFields() - n1; i++)
+			local.setField(n1 + i, right.getField(i));
 		return local;
 	}
 
-	private class JoinIterator implements DbFileIterator {
-
-		Iterator<Tuple> tupleItr;
-		ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
-
-		public JoinIterator(ArrayList<Tuple> tupleList) {
-			this.tupleList = tupleList;
-		}
-
-		@Override
-		public void close() {
-			tupleItr = null;
-		}
-
-		@Override
-		public boolean hasNext() throws DbException,
-				TransactionAbortedException {
-			if (tupleItr != null) {
-				return tupleItr.hasNext();
-			}
-			return false;
-		}
-
-		@Override
-		public Tuple next() throws DbException, TransactionAbortedException,
-				NoSuchElementException {
-			if (tupleItr != null) {
-				return tupleItr.next();
-			}
-			throw new NoSuchElementException();
-		}
-
-		@Override
-		public void open() throws DbException, TransactionAbortedException {
-			this.tupleItr = this.tupleList.iterator();
-
-		}
-
-		@Override
-		public void rewind() throws DbException, TransactionAbortedException {
-			this.close();
-			this.open();
-		}
-
-	}
-
 }
@@ -35,6 +35,21 @@ public class JoinPredicate {
      */
     public boolean filter(Tuple t1, Tuple t2) {
         // some code goes here
-        return new Predicate(field1, op, t2.getField(field2)).filter(t1);
+        return t1.getField(field1).compare(op, t2.getField(field2));
+    }
+
+    /** @return the field of the first tuple this predicate compares */
+    public int getField1() {
+        return field1;
+    }
+
+    /** @return the field of the second tuple this predicate compares */
+    public int getField2() {
+        return field2;
+    }
+
+    /** @return the operator this predicate applies */
+    public Predicate.Op getOp() {
+        return op;
     }
 }
@@ -0,0 +1,60 @@
+package simpledb;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * LRUPolicy evicts the least recently used page.  Pages are kept in a
+ * LinkedHashMap in access order, so both a hit and picking a victim are
+ * constant time.  Pinned pages are moved aside and rejoin the list as the
+ * most recently used page when they are unpinned.  Every call, including a hit, takes this policy's monitor;
+ * use {@link ClockPolicy} where hits must not lock.
+ */
+public class LRUPolicy implements ReplacementPolicy {
+
+    private LinkedHashMap<PageId, Boolean> pages;
+    private HashSet<PageId> pinned;
+
+    public LRUPolicy() {
+        pages = new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+        pinned = new HashSet<PageId>();
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (!pinned.contains(pid))
+            pages.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // get() moves the entry to the most recently used end
+        pages.get(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (pages.remove(pid) == null)
+            pinned.remove(pid);
+    }
+
+    public synchronized void setEvictable(PageId pid, boolean evictable) {
+        if (evictable) {
+            if (pinned.remove(pid))
+                pages.put(pid, Boolean.TRUE);
+        } else if (pages.remove(pid) != null) {
+            pinned.add(pid);
+        }
+    }
+
+    public synchronized void victimDeclined(PageId pid) {
+        pageAdded(pid);
+    }
+
+    public synchronized PageId pickVictim() {
+        Iterator<PageId> it = pages.keySet().iterator();
+        if (!it.hasNext())
+            return null;
+        PageId victim = it.next();
+        it.remove();
+        return victim;
+    }
+}
@@ -0,0 +1,255 @@
+package simpledb;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockManager keeps the page-level locks used for strict two-phase locking.
+ * A transaction holds either a shared lock on a page (many readers) or an
+ * exclusive lock (one writer); a transaction that holds the only shared
+ * lock on a page can upgrade it to an exclusive lock.  Locks are only
+ * released all at once when the transaction completes (see
+ * {@link BufferPool#transactionComplete}).
+ * <p>
+ * There is no global monitor.  Each page has its own LockState, and callers
+ * synchronize on (and wait on) that state only, so transactions that touch
+ * different pages never contend, and readers of the same page are granted
+ * their locks without waiting for each other.
+ * <p>
+ * A request that has to wait adds its edges to a {@link WaitForGraph}
+ * and checks right away whether it closed a cycle.  If it did, the youngest
+ * transaction on the cycle is chosen as the victim, and its pending request
+ * throws TransactionAbortedException.  The victim may be the requester or a
+ * transaction that is already asleep.  Requests never time out.
+ */
+public class LockManager {
+
+    /** Lock state of a single page; guarded by its own monitor. */
+    private static class LockState {
+        HashSet<TransactionId> sharers = new HashSet<TransactionId>();
+        TransactionId exclusive;
+        // transactions blocked on this page
+        HashSet<TransactionId> waiters = new HashSet<TransactionId>();
+        // set once the state has been dropped from the lock table;
+        // a request that finds a retired state looks it up again
+        boolean retired;
+
+        boolean isFree() {
+            return exclusive == null && sharers.isEmpty();
+        }
+    }
+
+    private ConcurrentHashMap<PageId, LockState> locks;
+    private ConcurrentHashMap<TransactionId, Set<PageId>> held;
+    private WaitForGraph waitsFor;
+    private AtomicLong deadlocksDetected;
+    private AtomicLong victimsAborted;
+
+    public LockManager() {
+        locks = new ConcurrentHashMap<PageId, LockState>();
+        held = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+        waitsFor = new WaitForGraph();
+        deadlocksDetected = new AtomicLong(0);
+        victimsAborted = new AtomicLong(0);
+    }
+
+    /**
+     * Acquires a lock on pid for tid, blocking while a conflicting lock is
+     * held by another transaction.  READ_ONLY asks for a shared lock and
+     * READ_WRITE for an exclusive one; asking for READ_WRITE while holding
+     * a shared lock upgrades it.
+     *
+     * @throws TransactionAbortedException if tid was chosen as a deadlock victim
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        while (true) {
+            LockState state = stateFor(pid);
+            Object wake = null;
+            synchronized (state) {
+                if (state.retired)
+                    continue;
+                if (waitsFor.isDoomed(tid))
+                    abortVictim(tid, state);
+                if (grant(state, tid, exclusive)) {
+                    if (state.waiters.remove(tid))
+                        waitsFor.unblock(tid);
+                    heldBy(tid).add(pid);
+                    return;
+                }
+                state.waiters.add(tid);
+                TransactionId victim = waitsFor.block(tid, conflicts(state, tid, exclusive), state);
+                if (victim != null) {
+                    deadlocksDetected.incrementAndGet();
+                    if (victim.equals(tid))
+                        abortVictim(tid, state);
+                    // the victim is asleep on some page; wake it outside our monitor
+                    wake = waitsFor.waitingOn(victim);
+                }
+                else {
+                    try {
+                        state.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        state.waiters.remove(tid);
+                        waitsFor.unblock(tid);
+                        throw new TransactionAbortedException();
+                    }
+                }
+            }
+            if (wake != null) {
+                synchronized (wake) {
+                    wake.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Number of wait-for cycles found since this lock manager was created. */
+    public long getDeadlocksDetected() {
+        return deadlocksDetected.get();
+    }
+
+    /** Number of lock requests aborted to break a deadlock. */
+    public long getVictimsAborted() {
+        return victimsAborted.get();
+    }
+
+    /**
+     * Releases whatever lock tid holds on pid and wakes up the
+     * transactions waiting for it.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Set<PageId> pages = held.get(tid);
+        if (pages != null)
+            pages.remove(pid);
+        unlock(tid, pid);
+    }
+
+    /** Releases every lock held by tid. */
+    public void releaseAll(TransactionId tid) {
+        waitsFor.remove(tid);
+        Set<PageId> pages = held.remove(tid);
+        if (pages == null)
+            return;
+        Iterator<PageId> it = pages.iterator();
+        while (it.hasNext())
+            unlock(tid, it.next());
+    }
+
+    /** Return true if tid holds a shared or exclusive lock on pid */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        LockState state = locks.get(pid);
+        if (state == null)
+            return false;
+        synchronized (state) {
+            return tid.equals(state.exclusive) || state.sharers.contains(tid);
+        }
+    }
+
+    /** Return true if tid holds an exclusive lock on pid */
+    public boolean holdsExclusive(TransactionId tid, PageId pid) {
+        LockState state = locks.get(pid);
+        if (state == null)
+            return false;
+        synchronized (state) {
+            return tid.equals(state.exclusive);
+        }
+    }
+
+    /** Returns the pages tid currently holds locks on. */
+    public Set<PageId> pagesLockedBy(TransactionId tid) {
+        Set<PageId> pages = held.get(tid);
+        if (pages == null)
+            return Collections.emptySet();
+        return pages;
+    }
+
+    /** Grants the request if it is compatible.  Call with state's monitor held. */
+    private boolean grant(LockState state, TransactionId tid, boolean exclusive) {
+        if (tid.equals(state.exclusive))
+            return true;
+        if (state.exclusive != null)
+            return false;
+        if (!exclusive) {
+            state.sharers.add(tid);
+            return true;
+        }
+        // exclusive: either nobody holds the page, or tid is its only reader
+        if (state.sharers.isEmpty()
+                || (state.sharers.size() == 1 && state.sharers.contains(tid))) {
+            state.sharers.remove(tid);
+            state.exclusive = tid;
+            return true;
+        }
+        return false;
+    }
+
+    /** The transactions tid has to wait for.  Call with state's monitor held. */
+    private Set<TransactionId> conflicts(LockState state, TransactionId tid, boolean exclusive) {
+        HashSet<TransactionId> holders = new HashSet<TransactionId>();
+        if (state.exclusive != null)
+            holders.add(state.exclusive);
+        else if (exclusive) {
+            holders.addAll(state.sharers);
+            holders.remove(tid);
+        }
+        return holders;
+    }
+
+    /** Aborts the pending request of a deadlock victim.  Call with state's monitor held. */
+    private void abortVictim(TransactionId tid, LockState state)
+        throws TransactionAbortedException {
+        state.waiters.remove(tid);
+        waitsFor.remove(tid);
+        victimsAborted.incrementAndGet();
+        throw new TransactionAbortedException();
+    }
+
+    private void unlock(TransactionId tid, PageId pid) {
+        LockState state = locks.get(pid);
+        if (state == null)
+            return;
+        synchronized (state) {
+            if (tid.equals(state.exclusive))
+                state.exclusive = null;
+            else if (!state.sharers.remove(tid))
+                return;
+            Iterator<TransactionId> it = state.waiters.iterator();
+            while (it.hasNext())
+                waitsFor.removeEdge(it.next(), tid);
+            if (state.isFree()) {
+                state.retired = true;
+                locks.remove(pid, state);
+            }
+            state.notifyAll();
+        }
+    }
+
+    private LockState stateFor(PageId pid) {
+        LockState state = locks.get(pid);
+        if (state == null) {
+            LockState fresh = new LockState();
+            state = locks.putIfAbsent(pid, fresh);
+            if (state == null)
+                state = fresh;
+        }
+        return state;
+    }
+
+    private Set<PageId> heldBy(TransactionId tid) {
+        Set<PageId> pages = held.get(tid);
+        if (pages == null) {
+            Set<PageId> fresh = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+            pages = held.putIfAbsent(tid, fresh);
+            if (pages == null)
+                pages = fresh;
+        }
+        return pages;
+    }
+}
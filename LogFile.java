@@ -1,7 +1,9 @@
-
 package simpledb;
 
 import java.io.*;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -10,27 +12,73 @@ able to write different log records as needed, but it is the
 responsibility of the caller to ensure that write ahead logging and
 two-phase locking discipline are followed.  <p>
 
-<u> Locking note: </u>
+The log is append-only.  Records are first appended to an in-memory log
+buffer and only reach the file when somebody needs them to be durable:
+a commit, an abort, or the BufferPool about to write a dirty page (the
+write-ahead rule).  The file starts with the LSN of the last complete
+checkpoint (or NO_CHECKPOINT_ID).  Every record starts at a byte offset
+in the file, its LSN, and ends with that offset so the log can also be
+read backwards.  The record layouts are
+<pre>
+    BEGIN, COMMIT, ABORT:  int type, long tid, long start
+    UPDATE:                int type, long tid, before page, after page, long start
+    CHECKPOINT:            int type, long -1,
+                           int n, n * (long tid, long first LSN),
+                           int m, m * (page id, long recLSN), long start
+</pre>
+where a page is written as its class name followed by its page id and the
+page data, and a page id as its class name and the integers of
+{@link PageId#serialize}. <p>
+
+<u> Group commit: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+Forcing the log is the expensive part of a commit, so concurrent commits
+share one force.  A committing transaction appends its COMMIT record and
+then waits until the log is durable up to the end of that record.  If no
+force is in progress it becomes the leader: it takes everything in the
+buffer, writes it and calls force() once, without holding the LogFile
+monitor.  Commits that arrive meanwhile keep appending to the buffer and
+wait for the leader; when it finishes, one of them leads the next force
+for the whole group.  {@link #setGroupCommitWindow} makes a leader wait a
+little before forcing so that more commits can join its group. <p>
 
+<u> Checkpoints and recovery: </u>
 <p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
 
-       ..
+Recovery follows ARIES: an analysis pass rebuilds the active transaction
+table and the dirty page table from the last checkpoint, a redo pass
+repeats history from the oldest recLSN, and an undo pass rolls back the
+transactions that never committed.  The LogFile keeps the dirty page
+table itself: a page enters it, with its recLSN, when its UPDATE record
+is appended, and leaves it once the BufferPool has written the page and
+a checkpoint has synced the page's file.  Log records carry full page
+images, so applying one twice is harmless and redo needs no page LSNs on
+disk; a record is redone when its page is in the dirty page table and
+the record is not older than the page's recLSN. <p>
 
-       }
-    }
-</pre>
+Checkpoints are fuzzy.  They sync the files of pages written since the
+previous checkpoint, then log the active transactions and the dirty page
+table, and finally point the file header at the new record.  Nothing is
+flushed from the BufferPool, and transactions keep running the whole
+time.  A checkpoint is taken every {@link #setCheckpointInterval} bytes of
+log, so restart only has to scan the log written since the last one (plus
+the records of transactions that were still running). <p>
+
+A LogFile that is opened without recovery can be recovered later, once
+the catalog is loaded; {@link Catalog#loadSchema} does so through
+{@link #recoverOnStartup}.  If it is written to first, an empty log is
+started, but a log that still holds records is never thrown away: the
+append fails until {@link #recover} has been called. <p>
+
+<u> Locking note: </u>
+<p>
+
+The BufferPool writes log records while it holds the stripe lock of the
+page it is flushing, so the lock order is BufferPool stripe, then LogFile.
+LogFile methods only hold the LogFile monitor while touching the log
+buffer and its tables, and any method that calls back into the BufferPool
+(rollback and recovery) must do so without holding it.
 */
 
 public class LogFile {
@@ -48,6 +96,40 @@ public class LogFile {
     static int INT_SIZE = 4;
     static int LONG_SIZE = 8;
 
+    /** Once the log buffer holds this many bytes, appending forces it out. */
+    static final int LOG_BUFFER_SIZE = 1 << 20;
+    /** Default number of log bytes between automatic checkpoints. */
+    static final long DEFAULT_CHECKPOINT_INTERVAL = 16L << 20;
+
+    // records appended but not yet handed to a force
+    private ByteArrayOutputStream logBuffer;
+    private DataOutputStream logOut;
+    // bytes [0, writtenEnd) are in the file, [0, durableEnd) are forced
+    private long writtenEnd;
+    private long durableEnd;
+    // true while a leader is writing and forcing the log
+    private boolean forcing;
+    private long groupCommitWindow;
+    private long numForces;
+    // the log was opened without recovery and nothing has been appended yet
+    private boolean recoveryUndecided;
+
+    // LSN of the BEGIN record of every active transaction
+    private HashMap<Long, Long> tidToFirstLogRecord;
+    // active transactions that have logged at least one update
+    private HashSet<Long> writers;
+
+    // dirty page table: recLSN of pages whose last logged image may not be on disk
+    private HashMap<PageId, Long> dirtyPages;
+    // pages written by the BufferPool that no checkpoint has synced yet
+    private HashMap<PageId, Long> unsyncedPages;
+    // how many times each unsynced page has been written, so a checkpoint
+    // can tell that a page it synced was written again meanwhile
+    private HashMap<PageId, Long> pageWrites;
+    private long lastCheckpoint;
+    private long checkpointInterval;
+    private boolean checkpointing;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         If recover is true, initiate recovery after loading the log
@@ -61,7 +143,22 @@ public class LogFile {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
 
-        // some code goes here
+        logBuffer = new ByteArrayOutputStream();
+        logOut = new DataOutputStream(logBuffer);
+        tidToFirstLogRecord = new HashMap<Long, Long>();
+        writers = new HashSet<Long>();
+        dirtyPages = new HashMap<PageId, Long>();
+        unsyncedPages = new HashMap<PageId, Long>();
+        pageWrites = new HashMap<PageId, Long>();
+        groupCommitWindow = 0;
+        numForces = 0;
+        lastCheckpoint = NO_CHECKPOINT_ID;
+        checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+        writtenEnd = durableEnd = raf.length();
+        recoveryUndecided = true;
+        if (recover)
+            recover();
     }
 
     /** Write an abort record to the log for the specified tid, force
@@ -69,44 +166,159 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // some code goes here
+        abort(tid.getId());
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with the
+        other transactions committing at the same time.  A
+        transaction that logged no updates has nothing to make
+        durable, so its commit does not force.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        // some code goes here
+    public void logCommit(TransactionId tid) throws IOException {
+        long end;
+        boolean wrote;
+        synchronized (this) {
+            long start = startRecord(COMMIT_RECORD, tid.getId());
+            end = endRecord(start);
+            tidToFirstLogRecord.remove(tid.getId());
+            wrote = writers.remove(tid.getId());
+        }
+        if (wrote) {
+            forceUpTo(end);
+            checkpointIfDue(end);
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  The record
+        is only buffered; call {@link #force} before writing the page
+        to disk, and {@link #pageWritten} once it is written.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        // some code goes here
+        long end;
+        synchronized (this) {
+            end = appendUpdate(tid.getId(), before, after);
+            if (logBuffer.size() < LOG_BUFFER_SIZE)
+                return;
+        }
+        forceUpTo(end);
     }
 
-    /** Write a BEGIN record for the specified transaction
+    /** Write a BEGIN record for the specified transaction.  Transactions
+        that are not started through {@link Transaction#start} get their
+        BEGIN record with their first update.
         @param tid The transaction that is beginning
 
     */
     public synchronized  void logXactionBegin(TransactionId tid)
         throws IOException {
-        // some code goes here
+        beginIfNeeded(tid.getId());
+    }
+
+    /** Tells the log that the BufferPool wrote a page to its file, so the
+        page can leave the dirty page table at the next checkpoint.
+        @param pid The page that was written
+    */
+    public synchronized void pageWritten(PageId pid) {
+        Long recLSN = dirtyPages.remove(pid);
+        if (recLSN == null)
+            return;
+        Long writes = pageWrites.get(pid);
+        pageWrites.put(pid, Long.valueOf(writes == null ? 1 : writes.longValue() + 1));
+        Long older = unsyncedPages.get(pid);
+        if (older == null || recLSN.longValue() < older.longValue())
+            unsyncedPages.put(pid, recLSN);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: transactions keep running while it is taken. */
     public void logCheckpoint() throws IOException {
-        // some code goes here
+        HashMap<PageId, Long> toSync;
+        HashMap<PageId, Long> writesSeen;
+        synchronized (this) {
+            if (checkpointing)
+                return;
+            checkpointing = true;
+            toSync = new HashMap<PageId, Long>(unsyncedPages);
+            writesSeen = new HashMap<PageId, Long>(pageWrites);
+        }
+        try {
+            // pages written since the last checkpoint can only be dropped
+            // from the dirty page table once their files are durable
+            HashSet<Integer> tables = new HashSet<Integer>();
+            Iterator<PageId> pids = toSync.keySet().iterator();
+            while (pids.hasNext())
+                tables.add(pids.next().getTableId());
+            Iterator<Integer> it = tables.iterator();
+            while (it.hasNext()) {
+                try {
+                    Database.getCatalog().getDbFile(it.next()).sync();
+                } catch (NoSuchElementException e) {
+                    // the table was dropped; nothing left to sync
+                }
+            }
+
+            long start;
+            long end;
+            synchronized (this) {
+                Iterator<Map.Entry<PageId, Long>> synced = toSync.entrySet().iterator();
+                while (synced.hasNext()) {
+                    PageId pid = synced.next().getKey();
+                    // a page written during the sync keeps its (older)
+                    // recLSN, so only its write count shows the change
+                    Long seen = writesSeen.get(pid);
+                    Long now = pageWrites.get(pid);
+                    if (seen == null ? now == null : seen.equals(now)) {
+                        unsyncedPages.remove(pid);
+                        pageWrites.remove(pid);
+                    }
+                }
+                HashMap<PageId, Long> dirty = new HashMap<PageId, Long>(unsyncedPages);
+                Iterator<Map.Entry<PageId, Long>> d = dirtyPages.entrySet().iterator();
+                while (d.hasNext()) {
+                    Map.Entry<PageId, Long> e = d.next();
+                    Long older = dirty.get(e.getKey());
+                    if (older == null || e.getValue().longValue() < older.longValue())
+                        dirty.put(e.getKey(), e.getValue());
+                }
+
+                start = startRecord(CHECKPOINT_RECORD, NO_CHECKPOINT_ID);
+                logOut.writeInt(tidToFirstLogRecord.size());
+                Iterator<Map.Entry<Long, Long>> active = tidToFirstLogRecord.entrySet().iterator();
+                while (active.hasNext()) {
+                    Map.Entry<Long, Long> e = active.next();
+                    logOut.writeLong(e.getKey().longValue());
+                    logOut.writeLong(e.getValue().longValue());
+                }
+                logOut.writeInt(dirty.size());
+                d = dirty.entrySet().iterator();
+                while (d.hasNext()) {
+                    Map.Entry<PageId, Long> e = d.next();
+                    writePageId(logOut, e.getKey());
+                    logOut.writeLong(e.getValue().longValue());
+                }
+                end = endRecord(start);
+            }
+            forceUpTo(end);
+            writeHeader(start);
+            synchronized (this) {
+                lastCheckpoint = start;
+            }
+        } finally {
+            synchronized (this) {
+                checkpointing = false;
+            }
+        }
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
@@ -120,37 +332,516 @@ public class LogFile {
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
         be enforced by this method.)
+        <p>
+        The transaction's UPDATE records are read back from the file,
+        and the before images are written to disk in reverse log order, so
+        each page ends up as it was before the transaction first changed
+        it.  Cached copies of those pages are dropped from the BufferPool.
+        Every restored page is logged as another UPDATE of the
+        transaction, so a redo after a crash repeats the rollback too.
 
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        // some code goes here
+        rollback(tid.getId());
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
-        // some code goes here
+    public void shutdown() {
+        try {
+            logCheckpoint();
+            force();
+            raf.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Runs the analysis, redo and undo passes described above and
+        ends with a checkpoint.  Requires the catalog to know every table
+        that appears in the log.
     */
     public void recover() throws IOException {
-        // some code goes here
+        synchronized (this) {
+            recoveryUndecided = false;
+            logBuffer.reset();
+        }
+        long length = raf.length();
+        if (length < LONG_SIZE) {
+            synchronized (this) {
+                resetLog();
+            }
+            return;
+        }
+        raf.seek(0);
+        long checkpoint = raf.readLong();
+
+        HashMap<Long, Long> active = new HashMap<Long, Long>();
+        HashMap<PageId, Long> dirty = new HashMap<PageId, Long>();
+        long maxTid = -1;
+        long end;
+        RandomAccessFile in = new RandomAccessFile(logFile, "r");
+        try {
+            // analysis: rebuild the transaction and dirty page tables
+            long scanFrom = LONG_SIZE;
+            if (checkpoint != NO_CHECKPOINT_ID) {
+                in.seek(checkpoint);
+                in.readInt();
+                in.readLong();
+                readCheckpoint(in, active, dirty);
+                in.readLong();
+                scanFrom = in.getFilePointer();
+            }
+            Iterator<Long> tids = active.keySet().iterator();
+            while (tids.hasNext())
+                maxTid = Math.max(maxTid, tids.next().longValue());
+            in.seek(scanFrom);
+            end = scanFrom;
+            try {
+                while (in.getFilePointer() < length) {
+                    long start = in.getFilePointer();
+                    int type = in.readInt();
+                    long tid = in.readLong();
+                    if (type == UPDATE_RECORD) {
+                        skipPageData(in);
+                        PageId pid = skipPageData(in);
+                        if (!dirty.containsKey(pid))
+                            dirty.put(pid, start);
+                    }
+                    else if (type == CHECKPOINT_RECORD)
+                        // written, but the header was never pointed at it
+                        readCheckpoint(in, new HashMap<Long, Long>(), new HashMap<PageId, Long>());
+                    else if (type != BEGIN_RECORD && type != COMMIT_RECORD && type != ABORT_RECORD)
+                        break;
+                    if (in.readLong() != start)
+                        break;
+                    // only count records that made it to the log in one piece
+                    if (type == BEGIN_RECORD)
+                        active.put(tid, start);
+                    else if (type == COMMIT_RECORD || type == ABORT_RECORD)
+                        active.remove(tid);
+                    if (type != CHECKPOINT_RECORD)
+                        maxTid = Math.max(maxTid, tid);
+                    end = in.getFilePointer();
+                }
+            } catch (EOFException e) {
+                // a record torn by the crash; the log ends before it
+            }
+
+            // redo: repeat history for every page that may be stale on disk
+            long redoFrom = end;
+            Iterator<Long> recLSNs = dirty.values().iterator();
+            while (recLSNs.hasNext())
+                redoFrom = Math.min(redoFrom, recLSNs.next().longValue());
+            in.seek(redoFrom);
+            while (in.getFilePointer() < end) {
+                long start = in.getFilePointer();
+                int type = in.readInt();
+                in.readLong();
+                if (type == UPDATE_RECORD) {
+                    skipPageData(in);
+                    Page after = readPageData(in);
+                    Long recLSN = dirty.get(after.getId());
+                    if (recLSN != null && start >= recLSN.longValue()) {
+                        DbFile file = Database.getCatalog().getDbFile(after.getId().getTableId());
+                        file.writePage(after);
+                    }
+                }
+                else if (type == CHECKPOINT_RECORD)
+                    readCheckpoint(in, new HashMap<Long, Long>(), new HashMap<PageId, Long>());
+                in.readLong();
+            }
+        } finally {
+            in.close();
+        }
+
+        // the log continues after the last whole record
+        raf.setLength(end);
+        synchronized (this) {
+            writtenEnd = durableEnd = end;
+            lastCheckpoint = checkpoint;
+            tidToFirstLogRecord.clear();
+            tidToFirstLogRecord.putAll(active);
+            writers.clear();
+            writers.addAll(active.keySet());
+            dirtyPages.clear();
+            // every page redo wrote still has to be synced by a checkpoint
+            unsyncedPages.clear();
+            unsyncedPages.putAll(dirty);
+            pageWrites.clear();
+        }
+        // new transactions must not reuse the ids found in the log
+        while (TransactionId.counter.get() <= maxTid)
+            TransactionId.counter.compareAndSet(TransactionId.counter.get(), maxTid + 1);
+
+        // undo: roll back the transactions that were still running
+        Iterator<Long> losers = active.keySet().iterator();
+        while (losers.hasNext())
+            abort(losers.next().longValue());
+        logCheckpoint();
+    }
+
+    /** Runs {@link #recover} at start up, unless it already ran or this
+        log has been written to.  Call once the catalog holds every table. */
+    public void recoverOnStartup() throws IOException {
+        synchronized (this) {
+            if (!recoveryUndecided)
+                return;
+        }
+        recover();
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        long end = force();
+        RandomAccessFile in = new RandomAccessFile(logFile, "r");
+        try {
+            if (end < LONG_SIZE)
+                return;
+            System.out.println("last checkpoint: " + in.readLong());
+            while (in.getFilePointer() < end) {
+                long start = in.getFilePointer();
+                int type = in.readInt();
+                long tid = in.readLong();
+                String what;
+                switch (type) {
+                case BEGIN_RECORD: what = "BEGIN"; break;
+                case COMMIT_RECORD: what = "COMMIT"; break;
+                case ABORT_RECORD: what = "ABORT"; break;
+                case UPDATE_RECORD:
+                    skipPageData(in);
+                    PageId pid = skipPageData(in);
+                    what = "UPDATE table " + pid.getTableId() + " page " + pid.pageno();
+                    break;
+                case CHECKPOINT_RECORD:
+                    HashMap<Long, Long> active = new HashMap<Long, Long>();
+                    HashMap<PageId, Long> dirty = new HashMap<PageId, Long>();
+                    readCheckpoint(in, active, dirty);
+                    what = "CHECKPOINT active " + active + " dirty pages " + dirty.size();
+                    break;
+                default:
+                    throw new IOException("Unknown log record type " + type + " at " + start);
+                }
+                in.readLong();
+                System.out.println(start + ": " + what + " tid " + tid);
+            }
+        } finally {
+            in.close();
+        }
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force every record appended so far to disk.
+        @return the LSN up to which the log is durable
+    */
+    public long force() throws IOException {
+        long end;
+        synchronized (this) {
+            end = writtenEnd + logBuffer.size();
+        }
+        forceUpTo(end);
+        return end;
+    }
+
+    /** Make the leader of a group commit wait up to the given number of
+        milliseconds for more commits before forcing.  0, the default,
+        forces as soon as the previous force has finished. */
+    public synchronized void setGroupCommitWindow(long millis) {
+        groupCommitWindow = millis;
+    }
+
+    /** Take a checkpoint automatically after every given number of log
+        bytes.  This bounds how much log recovery has to scan. */
+    public synchronized void setCheckpointInterval(long bytes) {
+        checkpointInterval = bytes;
+    }
+
+    /** Returns how many times the log has been forced to disk. */
+    public synchronized long getNumForces() {
+        return numForces;
+    }
+
+    /** Writes the ABORT record for tid after rolling it back. */
+    private void abort(long tid) throws IOException {
+        rollback(tid);
+        long end;
+        synchronized (this) {
+            long start = startRecord(ABORT_RECORD, tid);
+            end = endRecord(start);
+            tidToFirstLogRecord.remove(tid);
+            writers.remove(tid);
+        }
+        forceUpTo(end);
+        checkpointIfDue(end);
+    }
+
+    private void rollback(long tid) throws IOException {
+        Long first;
+        synchronized (this) {
+            first = tidToFirstLogRecord.get(tid);
+        }
+        if (first == null)
+            return;
+        long end = force();
+
+        ArrayList<Page> befores = new ArrayList<Page>();
+        RandomAccessFile in = new RandomAccessFile(logFile, "r");
+        try {
+            in.seek(first.longValue());
+            while (in.getFilePointer() < end) {
+                int type = in.readInt();
+                long recordTid = in.readLong();
+                if (type == UPDATE_RECORD) {
+                    Page before = readPageData(in);
+                    skipPageData(in);
+                    if (recordTid == tid)
+                        befores.add(before);
+                }
+                else if (type == CHECKPOINT_RECORD)
+                    readCheckpoint(in, new HashMap<Long, Long>(), new HashMap<PageId, Long>());
+                in.readLong();
+            }
+        } finally {
+            in.close();
+        }
+
+        for (int i = befores.size() - 1; i >= 0; i--) {
+            Page before = befores.get(i);
+            Database.getBufferPool().discardPage(before.getId());
+            synchronized (this) {
+                appendUpdate(tid, before, before);
+            }
+            DbFile file = Database.getCatalog().getDbFile(before.getId().getTableId());
+            file.writePage(before);
+            pageWritten(before.getId());
+            // read-ahead may have cached the disk copy in between
+            Database.getBufferPool().discardPage(before.getId());
+        }
+    }
+
+    /** Takes a checkpoint if the log grew by the checkpoint interval. */
+    private void checkpointIfDue(long end) throws IOException {
+        synchronized (this) {
+            long since = lastCheckpoint == NO_CHECKPOINT_ID ? LONG_SIZE : lastCheckpoint;
+            if (checkpointing || end - since < checkpointInterval)
+                return;
+        }
+        logCheckpoint();
+    }
+
+    /** Waits until the log is durable up to lsn, leading a force if none
+        is in progress. */
+    private void forceUpTo(long lsn) throws IOException {
+        byte[] data;
+        long start;
+        synchronized (this) {
+            while (durableEnd < lsn && forcing)
+                waitForLog(0);
+            if (durableEnd >= lsn)
+                return;
+            forcing = true;
+            if (groupCommitWindow > 0) {
+                // give other committers a chance to join this group
+                long until = System.currentTimeMillis() + groupCommitWindow;
+                long left;
+                while ((left = until - System.currentTimeMillis()) > 0)
+                    waitForLog(left);
+            }
+            data = logBuffer.toByteArray();
+            start = writtenEnd;
+        }
+
+        boolean done = false;
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            long pos = start;
+            while (buf.hasRemaining())
+                pos += channel.write(buf, pos);
+            channel.force(false);
+            done = true;
+        } finally {
+            synchronized (this) {
+                if (done) {
+                    // keep whatever was appended while we were forcing
+                    byte[] rest = logBuffer.toByteArray();
+                    logBuffer.reset();
+                    logBuffer.write(rest, data.length, rest.length - data.length);
+                    writtenEnd = durableEnd = start + data.length;
+                    numForces++;
+                }
+                forcing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /** wait() on the log for a force; call with the monitor held. */
+    private void waitForLog(long millis) throws IOException {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while forcing the log");
+        }
+    }
+
+    /** Points the file header at the checkpoint record at lsn. */
+    private void writeHeader(long lsn) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(LONG_SIZE);
+        buf.putLong(lsn);
+        buf.flip();
+        FileChannel channel = raf.getChannel();
+        while (buf.hasRemaining())
+            channel.write(buf, buf.position());
+        channel.force(false);
+    }
+
+    /** Starts a new, empty log.  Call with the monitor held and no force running. */
+    private void resetLog() throws IOException {
+        raf.setLength(0);
+        writtenEnd = durableEnd = 0;
+        writeHeader(NO_CHECKPOINT_ID);
+        writtenEnd = durableEnd = LONG_SIZE;
+        logBuffer.reset();
+        lastCheckpoint = NO_CHECKPOINT_ID;
+        recoveryUndecided = false;
+    }
+
+    /** Appends an UPDATE record.  Call with the monitor held.
+        @return the LSN just past the record */
+    private long appendUpdate(long tid, Page before, Page after) throws IOException {
+        beginIfNeeded(tid);
+        long start = startRecord(UPDATE_RECORD, tid);
+        writePageData(logOut, before);
+        writePageData(logOut, after);
+        long end = endRecord(start);
+        writers.add(tid);
+        if (!dirtyPages.containsKey(after.getId()))
+            dirtyPages.put(after.getId(), start);
+        return end;
+    }
+
+    /** Appends a BEGIN record for tid unless it has one.  Call with the monitor held. */
+    private void beginIfNeeded(long tid) throws IOException {
+        if (tidToFirstLogRecord.containsKey(tid))
+            return;
+        long start = startRecord(BEGIN_RECORD, tid);
+        endRecord(start);
+        tidToFirstLogRecord.put(tid, start);
+    }
+
+    /** Starts a record in the log buffer.  Call with the monitor held.
+        @return the LSN of the record */
+    private long startRecord(int type, long tid) throws IOException {
+        if (recoveryUndecided) {
+            // the records may be all that is left of committed work
+            if (writtenEnd > LONG_SIZE)
+                throw new IOException("Log " + logFile
+                        + " holds records that were not recovered; call recover() first");
+            resetLog();
+        }
+        long start = writtenEnd + logBuffer.size();
+        logOut.writeInt(type);
+        logOut.writeLong(tid);
+        return start;
+    }
+
+    /** Ends the record that started at start.  Call with the monitor held.
+        @return the LSN just past the record */
+    private long endRecord(long start) throws IOException {
+        logOut.writeLong(start);
+        return writtenEnd + logBuffer.size();
+    }
+
+    /** Reads the body of a CHECKPOINT record into the given tables. */
+    private void readCheckpoint(DataInput in, HashMap<Long, Long> active,
+                                HashMap<PageId, Long> dirty) throws IOException {
+        int numActive = in.readInt();
+        for (int i = 0; i < numActive; i++) {
+            long tid = in.readLong();
+            active.put(tid, in.readLong());
+        }
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            PageId pid = readPageId(in);
+            dirty.put(pid, in.readLong());
+        }
+    }
+
+    private void writePageData(DataOutput out, Page p) throws IOException {
+        out.writeUTF(p.getClass().getName());
+        writePageId(out, p.getId());
+        byte[] pageData = p.getPageData();
+        out.writeInt(pageData.length);
+        out.write(pageData);
+    }
+
+    private Page readPageData(DataInput in) throws IOException {
+        String pageClassName = in.readUTF();
+        PageId pid = readPageId(in);
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+
+        try {
+            Constructor<?> pageConsts = null;
+            Constructor<?>[] cs = Class.forName(pageClassName).getConstructors();
+            for (int i = 0; i < cs.length; i++) {
+                Class<?>[] params = cs[i].getParameterTypes();
+                if (params.length == 2 && params[1] == byte[].class)
+                    pageConsts = cs[i];
+            }
+            return (Page) pageConsts.newInstance(pid, pageData);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new IOException("Could not read page from log: " + e.getMessage());
+        }
+    }
+
+    /** Steps over a page in the log without building it.
+        @return the id of the page */
+    private PageId skipPageData(DataInput in) throws IOException {
+        in.readUTF();
+        PageId pid = readPageId(in);
+        int len = in.readInt();
+        if (in.skipBytes(len) != len)
+            throw new EOFException();
+        return pid;
+    }
+
+    private void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++)
+            out.writeInt(pageInfo[i]);
+    }
+
+    private PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        int numIdArgs = in.readInt();
+        Object[] idArgs = new Object[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++)
+            idArgs[i] = Integer.valueOf(in.readInt());
+
+        try {
+            Constructor<?> idConsts = null;
+            Constructor<?>[] cs = Class.forName(idClassName).getConstructors();
+            for (int i = 0; i < cs.length; i++)
+                if (cs[i].getParameterTypes().length == numIdArgs)
+                    idConsts = cs[i];
+            return (PageId) idConsts.newInstance(idArgs);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new IOException("Could not read page id from log: " + e.getMessage());
+        }
     }
 
 }
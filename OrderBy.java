@@ -30,10 +30,21 @@ public class OrderBy extends AbstractDbIterator {
         return td;
     }
 
+    /** @return the field the tuples are sorted on */
+    public int getOrderByField() {
+        return orderByField;
+    }
+
+    /** @return true if the tuples are sorted in ascending order */
+    public boolean isAscending() {
+        return asc;
+    }
+
     public void open()
         throws DbException, NoSuchElementException, TransactionAbortedException {
         child.open();
         //load all the tuples in a collection, and sort it
+        childTups.clear();
         while (child.hasNext())
             childTups.add((Tuple)child.next());
         Collections.sort(childTups, new TupleComparator(orderByField, asc));
@@ -50,4 +50,9 @@ public interface Page {
         to it.  Used by recovery.
     */
     public Page getBeforeImage();
+
+    /** Make the current contents of this page its before image.  Called
+        once the changes of the transaction that dirtied it are committed.
+    */
+    public void setBeforeImage();
 }
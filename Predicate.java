@@ -57,10 +57,43 @@ public class Predicate {
      */
     public boolean filter(Tuple t) {
         // some code goes here
+    	if(t instanceof CompactTuple && operand instanceof IntField
+    			&& t.getTupleDesc().getType(field) == Type.INT_TYPE)
+    		return IntField.compare(op, ((CompactTuple)t).getInt(field), ((IntField)operand).getValue());
     	Field comp = t.getField(field);
     	return comp.compare(op, operand);
     }
 
+    /**
+     * Like {@link #filter(Tuple)}, but reads the field straight from its
+     * serialized form, so a page can test a tuple before building it.
+     * Ints are compared without allocating a Field.
+     *
+     * @param type the type of the field this predicate tests
+     * @param data bytes holding the serialized field
+     * @param offset where the field starts in data
+     */
+    public boolean filter(Type type, byte[] data, int offset) {
+    	if(type == Type.INT_TYPE && operand instanceof IntField)
+    		return IntField.compare(op, Type.readInt(data, offset), ((IntField)operand).getValue());
+    	return type.parse(data, offset).compare(op, operand);
+    }
+
+    /** @return the field number this predicate tests */
+    public int getField() {
+    	return field;
+    }
+
+    /** @return the operator this predicate applies */
+    public Op getOp() {
+    	return op;
+    }
+
+    /** @return the value this predicate compares against */
+    public Field getOperand() {
+    	return operand;
+    }
+
     /**
      * Returns something useful, like
      * "f = field_id op = op_string operand = operand_string
@@ -0,0 +1,174 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ReadAhead watches the heap pages a {@link BufferPool} hands out and, once a
+ * table is being read in page order, loads the pages after the current one
+ * on a background thread so that a scan finds them already cached.
+ * <p>
+ * Each table has one stream.  A stream counts as sequential after
+ * SEQUENTIAL_RUN consecutive page numbers; any other access starts a new
+ * run.  While a run lasts, the stream keeps up to window pages loaded ahead
+ * of the reader and asks for the next batch once half of them are used up.
+ * A batch is read from disk with one multi-page read
+ * ({@link HeapFile#readPages}).
+ * <p>
+ * The window adapts to what the scan observes.  A miss on a page inside the
+ * read-ahead range means the batches arrive too late, so the window
+ * doubles, up to a quarter of the pool.  A prefetched page that is evicted
+ * before anyone reads it means the window outruns the scan (or the pool),
+ * so the window halves.
+ */
+public class ReadAhead {
+
+    /** Consecutive page numbers after which a stream counts as sequential. */
+    static final int SEQUENTIAL_RUN = 2;
+    /** Window of a new stream, in pages. */
+    static final int INITIAL_WINDOW = 4;
+    /** Largest window, in pages, whatever the size of the pool. */
+    static final int MAX_WINDOW = 64;
+
+    /** Access pattern of one table; guarded by its own monitor. */
+    private static class Stream {
+        int lastPage = -1;
+        int run;
+        int window;
+        // pages below this number have been requested already
+        int prefetchedTo;
+
+        Stream(int window) {
+            this.window = window;
+        }
+    }
+
+    private final BufferPool pool;
+    private final int maxWindow;
+    private ConcurrentHashMap<Integer, Stream> streams;
+    private ThreadPoolExecutor loader;
+    private volatile boolean enabled = true;
+    private AtomicLong pagesPrefetched;
+    private AtomicLong prefetchHits;
+    private AtomicLong pagesWasted;
+
+    ReadAhead(BufferPool pool, int poolPages) {
+        this.pool = pool;
+        this.maxWindow = Math.min(MAX_WINDOW, poolPages / 4);
+        streams = new ConcurrentHashMap<Integer, Stream>();
+        pagesPrefetched = new AtomicLong(0);
+        prefetchHits = new AtomicLong(0);
+        pagesWasted = new AtomicLong(0);
+        // one loader thread, which goes away when there is nothing to read
+        loader = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "simpledb-readahead");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        loader.allowCoreThreadTimeOut(true);
+    }
+
+    /** Turns read-ahead on or off; it is on by default. */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** Number of pages loaded by read-ahead so far. */
+    public long getPagesPrefetched() {
+        return pagesPrefetched.get();
+    }
+
+    /** Number of prefetched pages that were later requested. */
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
+    /** Number of prefetched pages that were evicted without being requested. */
+    public long getPagesWasted() {
+        return pagesWasted.get();
+    }
+
+    /**
+     * Called by the pool for every page it hands out.
+     *
+     * @param hit true if the page was cached
+     * @param prefetched true if it was cached by read-ahead and this is its first use
+     */
+    void accessed(PageId pid, boolean hit, boolean prefetched) {
+        if (prefetched)
+            prefetchHits.incrementAndGet();
+        if (!enabled || maxWindow < 1 || !(pid instanceof HeapPageId))
+            return;
+        Stream s = streamFor(pid.getTableId());
+        int from = 0, count = 0;
+        synchronized (s) {
+            int page = pid.pageno();
+            if (page == s.lastPage + 1)
+                s.run++;
+            else {
+                s.run = 0;
+                s.prefetchedTo = page + 1;
+            }
+            s.lastPage = page;
+            if (s.run < SEQUENTIAL_RUN)
+                return;
+            if (!hit && page < s.prefetchedTo)
+                s.window = Math.min(maxWindow, s.window * 2);
+            if (s.prefetchedTo - page <= s.window / 2) {
+                from = Math.max(s.prefetchedTo, page + 1);
+                count = s.window;
+                s.prefetchedTo = from + count;
+            }
+        }
+        if (count > 0)
+            schedule(pid.getTableId(), from, count);
+    }
+
+    /** Called by the pool when it evicts a prefetched page nobody asked for. */
+    void wasted(PageId pid) {
+        pagesWasted.incrementAndGet();
+        Stream s = streams.get(pid.getTableId());
+        if (s == null)
+            return;
+        synchronized (s) {
+            s.window = Math.max(1, s.window / 2);
+        }
+    }
+
+    private void schedule(final int tableId, final int from, final int count) {
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDbFile(tableId);
+        } catch (java.util.NoSuchElementException e) {
+            return;
+        }
+        if (!(file instanceof HeapFile))
+            return;
+        final HeapFile heapFile = (HeapFile) file;
+        loader.execute(new Runnable() {
+            public void run() {
+                pagesPrefetched.addAndGet(pool.prefetchPages(heapFile, from, count));
+            }
+        });
+    }
+
+    private Stream streamFor(int tableId) {
+        Integer key = Integer.valueOf(tableId);
+        Stream s = streams.get(key);
+        if (s == null) {
+            Stream fresh = new Stream(Math.min(INITIAL_WINDOW, maxWindow));
+            s = streams.putIfAbsent(key, fresh);
+            if (s == null)
+                s = fresh;
+        }
+        return s;
+    }
+}
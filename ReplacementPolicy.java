@@ -0,0 +1,59 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool evicts when it runs
+ * out of frames.  The BufferPool tells the policy when a page is brought in,
+ * when a cached page is hit again and when a page leaves the pool for some
+ * other reason; the policy answers with a victim when asked.
+ * <p>
+ * Implementations are expected to do constant (amortized) work per call, so
+ * that a miss in a large pool does not cost a scan over every frame.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Called when a page is added to the buffer pool.
+     * @param pid the id of the page that was added
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Called on every buffer pool hit of a page that is already cached.
+     * @param pid the id of the page that was accessed
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool without having been chosen
+     * by {@link #pickVictim} (e.g. when it is discarded).
+     * @param pid the id of the page that was removed
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Marks a tracked page as evictable or not.  The BufferPool clears the
+     * flag while a page is pinned and sets it again when the last pin is
+     * released.  Pages are evictable when they are added.  Calls for pages
+     * the policy does not track are ignored.
+     * @param pid the id of the page
+     * @param evictable whether pickVictim may return this page
+     */
+    public void setEvictable(PageId pid, boolean evictable);
+
+    /**
+     * Chooses the next evictable page to evict and stops tracking it.
+     * @return the id of the page to evict, or null if no evictable page is tracked
+     */
+    public PageId pickVictim();
+
+    /**
+     * Called when the BufferPool could not evict the page that
+     * {@link #pickVictim} returned, e.g. because it was pinned meanwhile.
+     * The policy tracks the page again in the queue it was picked from,
+     * without counting this as an access.
+     * @param pid the id of the page that was handed back
+     */
+    public void victimDeclined(PageId pid);
+}
@@ -14,6 +14,9 @@ public class SeqScan implements DbIterator {
 	private String tableAlias;
 	private DbFile hf;
 	private DbFileIterator ite;
+	private boolean opened;
+	// predicates pushed into the scan; a tuple must pass all of them
+	private ArrayList<Predicate> preds = new ArrayList<Predicate>();
 	
 	/**
      * Creates a sequential scan over the specified table as a part of the
@@ -36,11 +39,97 @@ public class SeqScan implements DbIterator {
 
     }
 
+    /**
+     * Creates a sequential scan that only returns the tuples satisfying
+     * pred.  On a HeapFile the predicate is tested against the page bytes,
+     * so tuples that fail it are never built.
+     *
+     * @param pred the predicate to push into the scan, or null
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, Predicate pred) {
+        this(tid, tableid, tableAlias);
+        if(pred!=null)
+        	pushPredicate(pred);
+    }
+
+    /**
+     * Pushes a predicate into a scan that has not been opened yet, e.g.
+     * for a Filter sitting directly on top of it.  Predicates pushed
+     * earlier, or given to the constructor, still apply.
+     *
+     * @return false if the scan is already open and pred was not pushed
+     */
+    public boolean pushPredicate(Predicate pred) {
+    	if(opened)
+    		return false;
+    	preds.add(pred);
+    	ite = filtered(new ArrayList<Predicate>(preds));
+    	return true;
+    }
+
+    /**
+     * Takes back a predicate given to {@link #pushPredicate}, e.g. when
+     * the Filter that pushed it is closed.
+     *
+     * @return false if the scan is open or pred was not pushed
+     */
+    public boolean removePredicate(Predicate pred) {
+    	if(opened)
+    		return false;
+    	for(int i=0; i<preds.size(); i++){
+    		if(preds.get(i)==pred){
+    			preds.remove(i);
+    			ite = preds.isEmpty() ? hf.iterator(tid) : filtered(new ArrayList<Predicate>(preds));
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
+    private DbFileIterator filtered(final ArrayList<Predicate> preds) {
+    	if(hf instanceof HeapFile)
+    		return ((HeapFile)hf).iterator(tid, preds);
+    	// other files cannot look at raw pages; filter the tuples they return
+    	final DbFileIterator all = hf.iterator(tid);
+    	return new AbstractDbFileIterator() {
+    		public void open() throws DbException, TransactionAbortedException {
+    			all.open();
+    		}
+
+    		protected Tuple readNext() throws DbException, TransactionAbortedException {
+    			while(all.hasNext()){
+    				Tuple t = all.next();
+    				if(passes(t))
+    					return t;
+    			}
+    			return null;
+    		}
+
+    		private boolean passes(Tuple t) {
+    			for(int i=0; i<preds.size(); i++)
+    				if(!preds.get(i).filter(t))
+    					return false;
+    			return true;
+    		}
+
+    		public void rewind() throws DbException, TransactionAbortedException {
+    			close();
+    			all.rewind();
+    		}
+
+    		public void close() {
+    			super.close();
+    			all.close();
+    		}
+    	};
+    }
+
     public void open()
         throws DbException, TransactionAbortedException {
         if(hf==null){
         	throw new DbException(" File does not exist");
         }
+        opened = true;
         ite.open();
     }
 
@@ -80,6 +169,7 @@ public class SeqScan implements DbIterator {
     public void close() {
         // some code goes here
     	ite.close();
+    	opened = false;
     	//ite = null;
     }
 
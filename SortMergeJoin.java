@@ -0,0 +1,231 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * SortMergeJoin joins two children that are sorted in ascending order on
+ * their join fields by walking through both in step.  A child that is an
+ * ascending {@link OrderBy} on its join field, or that the caller says is
+ * sorted, is used as it is; any other child is sorted first with an
+ * OrderBy.
+ * <p>
+ * For EQUALS both children are streamed: each run of child2 tuples with
+ * the same key is buffered and joined with the child1 tuples that have
+ * that key.  For the other comparisons (a band join) child2 is kept in
+ * memory; as child1's key only grows, the child2 tuples that match it are
+ * always a prefix (GREATER_THAN, GREATER_THAN_OR_EQ) or a suffix
+ * (LESS_THAN, LESS_THAN_OR_EQ) of child2 whose boundary only moves
+ * forward.  Apart from the sorting, the work is linear in the size of the
+ * inputs plus the size of the output.  LIKE is not supported.
+ * <p>
+ * As with Join, an output tuple has the fields of child1 followed by
+ * those of child2.
+ */
+public class SortMergeJoin extends AbstractDbIterator {
+
+	private JoinPredicate pred;
+	private DbIterator child1;
+	private DbIterator child2;
+	private TupleDesc td;
+	private int field1;
+	private int field2;
+
+	// the child1 tuple being joined and the child2 tuples it matches:
+	// range[pos, end)
+	private Tuple outer;
+	private ArrayList<Tuple> range;
+	private int pos;
+	private int end;
+
+	// EQUALS: the run of child2 tuples with key runKey, and the child2
+	// tuple after it
+	private Field runKey;
+	private Tuple nextInner;
+
+	// other comparisons: all of child2, and how far the boundary has moved
+	private ArrayList<Tuple> inner;
+	private int bound;
+
+	/**
+	 * Constructor. Children that are not an ascending OrderBy on their join
+	 * field are sorted.
+	 *
+	 * @param p
+	 *            The predicate to join on; any operator except LIKE
+	 * @param child1
+	 *            Iterator for the left relation to join
+	 * @param child2
+	 *            Iterator for the right relation to join
+	 */
+	public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+		this(p, child1, false, child2, false);
+	}
+
+	/**
+	 * Constructor for children the caller knows to be sorted, e.g. read in
+	 * key order from an ordered file.
+	 *
+	 * @param p
+	 *            The predicate to join on; any operator except LIKE
+	 * @param child1
+	 *            Iterator for the left relation to join
+	 * @param sorted1
+	 *            true if child1 is already sorted in ascending order on the
+	 *            join field
+	 * @param child2
+	 *            Iterator for the right relation to join
+	 * @param sorted2
+	 *            true if child2 is already sorted in ascending order on the
+	 *            join field
+	 */
+	public SortMergeJoin(JoinPredicate p, DbIterator child1, boolean sorted1,
+			DbIterator child2, boolean sorted2) {
+		if (p.getOp() == Predicate.Op.LIKE)
+			throw new IllegalArgumentException("Sort-merge join does not support LIKE");
+		this.pred = p;
+		this.field1 = p.getField1();
+		this.field2 = p.getField2();
+		this.td = TupleDesc.combine(child1.getTupleDesc(), child2.getTupleDesc());
+		this.child1 = sorted1 || isSortedOn(child1, field1) ? child1 : new OrderBy(field1, true, child1);
+		this.child2 = sorted2 || isSortedOn(child2, field2) ? child2 : new OrderBy(field2, true, child2);
+	}
+
+	/**
+	 * Returns true if child produces its tuples in ascending order of
+	 * field, as far as can be told from the operator.
+	 */
+	static boolean isSortedOn(DbIterator child, int field) {
+		if (!(child instanceof OrderBy))
+			return false;
+		OrderBy o = (OrderBy) child;
+		return o.getOrderByField() == field && o.isAscending();
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	public void open() throws DbException, NoSuchElementException,
+			TransactionAbortedException {
+		child1.open();
+		child2.open();
+		start();
+	}
+
+	public void close() {
+		super.close();
+		child1.close();
+		child2.close();
+		outer = null;
+		range = null;
+		inner = null;
+		nextInner = null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		child1.rewind();
+		child2.rewind();
+		start();
+	}
+
+	private void start() throws DbException, TransactionAbortedException {
+		outer = null;
+		pos = end = 0;
+		if (pred.getOp() == Predicate.Op.EQUALS) {
+			range = new ArrayList<Tuple>();
+			runKey = null;
+			nextInner = child2.hasNext() ? child2.next() : null;
+		} else {
+			inner = new ArrayList<Tuple>();
+			while (child2.hasNext())
+				inner.add(child2.next());
+			range = inner;
+			bound = 0;
+		}
+	}
+
+	/**
+	 * Returns the next tuple of the join, or null if there are no more.
+	 *
+	 * @see Join#readNext
+	 */
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (true) {
+			if (outer != null && pos < end)
+				return Join.concat(td, outer, range.get(pos++));
+			if (!child1.hasNext())
+				return null;
+			outer = child1.next();
+			Field key = outer.getField(field1);
+			if (pred.getOp() == Predicate.Op.EQUALS) {
+				if (!matchRun(key))
+					return null;
+			} else {
+				matchBand(key);
+			}
+		}
+	}
+
+	/**
+	 * Makes the run of child2 tuples with key the current range.
+	 *
+	 * @return false if child2 has no tuples left that can match key or any
+	 *         greater key
+	 */
+	private boolean matchRun(Field key) throws TransactionAbortedException, DbException {
+		pos = 0;
+		if (runKey != null && compare(key, runKey) == 0) {
+			end = range.size();
+			return true;
+		}
+		range.clear();
+		runKey = null;
+		while (nextInner != null && compare(nextInner.getField(field2), key) < 0)
+			nextInner = child2.hasNext() ? child2.next() : null;
+		if (nextInner == null) {
+			end = 0;
+			return false;
+		}
+		if (compare(nextInner.getField(field2), key) == 0) {
+			runKey = key;
+			while (nextInner != null && compare(nextInner.getField(field2), key) == 0) {
+				range.add(nextInner);
+				nextInner = child2.hasNext() ? child2.next() : null;
+			}
+		}
+		end = range.size();
+		return true;
+	}
+
+	/**
+	 * Moves the boundary in the sorted child2 past the tuples that cannot
+	 * match key, and makes the tuples that do the current range.
+	 */
+	private void matchBand(Field key) {
+		// the boundary is the first child2 tuple with a greater key, or for
+		// LESS_THAN_OR_EQ and GREATER_THAN the first with an equal one
+		boolean skipEqual = pred.getOp() == Predicate.Op.LESS_THAN
+				|| pred.getOp() == Predicate.Op.GREATER_THAN_OR_EQ;
+		while (bound < inner.size()) {
+			int c = compare(inner.get(bound).getField(field2), key);
+			if (c > 0 || (c == 0 && !skipEqual))
+				break;
+			bound++;
+		}
+		if (pred.getOp() == Predicate.Op.LESS_THAN || pred.getOp() == Predicate.Op.LESS_THAN_OR_EQ) {
+			pos = bound;
+			end = inner.size();
+		} else {
+			pos = 0;
+			end = bound;
+		}
+	}
+
+	/** Returns the sign of a - b. */
+	private static int compare(Field a, Field b) {
+		if (a.compare(Predicate.Op.EQUALS, b))
+			return 0;
+		return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+	}
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -59,6 +60,20 @@ public class StringField implements Field {
         dos.write((byte)0);
     }
 
+    /** Write this string to buf, in the same maxSize + 4 byte format as
+    serialize(DataOutputStream).
+    @param buf Where the string is written
+    */
+    public void serialize(ByteBuffer buf) {
+    int len = Math.min(value.length(), maxSize);
+    buf.putInt(len);
+    // writeBytes keeps the low byte of each char; do the same
+    for (int i = 0; i < len; i++)
+        buf.put((byte)value.charAt(i));
+    for (int i = len; i < maxSize; i++)
+        buf.put((byte)0);
+    }
+
     /**
      * Compare the specified field to the value of this Field.
      * Return semantics are as specified by Field.compare
@@ -16,6 +16,14 @@ public class Transaction {
 
     /** Start the transaction running */
     public void start() {
+        LogFile log = Database.getLogFile();
+        if (log == null)
+            return;
+        try {
+            log.logXactionBegin(tid);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public TransactionId getId() {
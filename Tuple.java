@@ -35,6 +35,16 @@ public class Tuple {
         
     }
 
+    /**
+     * Creates a tuple for a subclass that keeps its values itself and
+     * overrides getField and setField.
+     */
+    protected Tuple(TupleDesc td, boolean keepsOwnFields) {
+        this.tupleDesc = td;
+        if(!keepsOwnFields)
+        	fields = new Field[td.numFields()];
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -103,7 +113,7 @@ public class Tuple {
         
     	StringBuilder ret = new StringBuilder("");
         for(int i=0;i<tupleDesc.numFields();i++){
-        	ret = ret.append(fields[i].toString() + " ");
+        	ret = ret.append(getField(i).toString() + " ");
         }
         return ret.append("\n").toString();
     }
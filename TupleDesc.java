@@ -12,6 +12,9 @@ public class TupleDesc {
 	private ArrayList<Type> FieldTypeList = new ArrayList<Type>();
 	private ArrayList<String> FieldNameList = new ArrayList<String>();
 	private String anonymousFieldMarker = "";
+	// byte offset of each field in a serialized tuple, then the tuple size;
+	// computed on first use, a TupleDesc never changes after construction
+	private int[] offsets;
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields
      * fields, with the first td1.numFields coming from td1 and the remaining
@@ -166,11 +169,28 @@ public class TupleDesc {
      */
     public int getSize() {
         // some code goes here
-    	int tot=0;
-        for(int i=0;i<numFields();i++ ){
-        	tot+=FieldTypeList.get(i).getLen();
+        return offsets()[numFields()];
+    }
+
+    /**
+     * @return the offset in bytes of the ith field within a serialized tuple
+     * of this TupleDesc.
+     */
+    public int getOffset(int i) throws NoSuchElementException {
+        if(i < 0 || i >= numFields())
+            throw new NoSuchElementException();
+        return offsets()[i];
+    }
+
+    private int[] offsets() {
+        int[] offs = offsets;
+        if(offs == null){
+            offs = new int[numFields() + 1];
+            for(int i=0;i<numFields();i++)
+                offs[i+1] = offs[i] + FieldTypeList.get(i).getLen();
+            offsets = offs;
         }
-        return tot;
+        return offs;
     }
 
     /**
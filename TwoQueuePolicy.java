@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * TwoQueuePolicy is the scan resistant 2Q replacement policy (Johnson and
+ * Shasha, VLDB '94).  A page seen for the first time goes on a small FIFO
+ * queue (A1in).  Only a page that is requested again after falling out of
+ * A1in, i.e. whose id is still remembered on the ghost queue A1out, is
+ * promoted to the main LRU queue (Am).  A sequential scan touches each page
+ * once, so its pages cycle through A1in and never displace the hot set that
+ * lives in Am (such as the bucket pages used by IndexFile lookups).
+ * <p>
+ * Pinned pages are set aside together with the queue they came from and
+ * go back to the tail of that queue when they are unpinned.
+ * <p>
+ * All operations are constant time and synchronized on the policy.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    /** Share of the pool reserved for pages seen only once. */
+    public static final double IN_FRACTION = 0.25;
+    /** Number of ghost entries remembered, as a share of the pool size. */
+    public static final double OUT_FRACTION = 0.5;
+
+    private LinkedHashMap<PageId, Boolean> a1in;
+    private LinkedHashMap<PageId, Boolean> a1out;
+    private LinkedHashMap<PageId, Boolean> am;
+    // pinned pages, mapped to TRUE if they came from Am and FALSE for A1in
+    private HashMap<PageId, Boolean> pinned;
+    // the last kout victims, mapped the same way, in case one is handed back
+    private LinkedHashMap<PageId, Boolean> offered;
+    private int kin;
+    private int kout;
+
+    /**
+     * Creates a 2Q policy for a buffer pool of the given size.
+     *
+     * @param numPages the number of pages in the buffer pool this policy serves
+     */
+    public TwoQueuePolicy(int numPages) {
+        this((int) (numPages * IN_FRACTION), (int) (numPages * OUT_FRACTION));
+    }
+
+    /**
+     * Creates a 2Q policy with explicit queue sizes.  A page is promoted to
+     * the main queue only if it is requested again within kout misses, so
+     * kout should cover the number of pages a scan reads between two hits
+     * on a hot page.
+     *
+     * @param kin the maximum number of pages kept on A1in
+     * @param kout the maximum number of page ids remembered on A1out
+     */
+    public TwoQueuePolicy(int kin, int kout) {
+        this.kin = Math.max(1, kin);
+        this.kout = Math.max(1, kout);
+        a1in = new LinkedHashMap<PageId, Boolean>();
+        a1out = new LinkedHashMap<PageId, Boolean>();
+        am = new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+        pinned = new HashMap<PageId, Boolean>();
+        offered = new LinkedHashMap<PageId, Boolean>();
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (pinned.containsKey(pid))
+            return;
+        if (a1in.containsKey(pid) || am.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        if (a1out.remove(pid) != null)
+            am.put(pid, Boolean.TRUE);
+        else
+            a1in.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // hits on A1in are treated as correlated references and ignored
+        am.get(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid) == null && am.remove(pid) == null)
+            pinned.remove(pid);
+    }
+
+    public synchronized void setEvictable(PageId pid, boolean evictable) {
+        if (evictable) {
+            Boolean inAm = pinned.remove(pid);
+            if (inAm == null)
+                return;
+            if (inAm)
+                am.put(pid, Boolean.TRUE);
+            else
+                a1in.put(pid, Boolean.TRUE);
+        } else if (a1in.remove(pid) != null) {
+            pinned.put(pid, Boolean.FALSE);
+        } else if (am.remove(pid) != null) {
+            pinned.put(pid, Boolean.TRUE);
+        }
+    }
+
+    public synchronized void victimDeclined(PageId pid) {
+        Boolean inAm = offered.remove(pid);
+        if (inAm != null && inAm) {
+            am.put(pid, Boolean.TRUE);
+        } else {
+            // still cached, so it is not a ghost; pageAdded would promote it
+            a1out.remove(pid);
+            a1in.put(pid, Boolean.TRUE);
+        }
+    }
+
+    public synchronized PageId pickVictim() {
+        PageId victim;
+        if (a1in.size() > kin || (am.isEmpty() && !a1in.isEmpty())) {
+            victim = removeFirst(a1in);
+            a1out.put(victim, Boolean.TRUE);
+            if (a1out.size() > kout)
+                removeFirst(a1out);
+            offered.put(victim, Boolean.FALSE);
+        } else if (am.isEmpty()) {
+            return null;
+        } else {
+            victim = removeFirst(am);
+            offered.put(victim, Boolean.TRUE);
+        }
+        if (offered.size() > kout)
+            removeFirst(offered);
+        return victim;
+    }
+
+    private static PageId removeFirst(LinkedHashMap<PageId, Boolean> queue) {
+        Iterator<PageId> it = queue.keySet().iterator();
+        PageId first = it.next();
+        it.remove();
+        return first;
+    }
+}
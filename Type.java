@@ -24,6 +24,11 @@ public enum Type {
             }
         }
 
+        @Override
+        public Field parse(byte[] data, int offset) {
+            return new IntField(readInt(data, offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +47,12 @@ public enum Type {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(byte[] data, int offset) {
+            int strLen = Math.max(0, Math.min(readInt(data, offset), STRING_LEN));
+            return new StringField(new String(data, offset + 4, strLen), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +71,21 @@ public enum Type {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object whose contents
+   *   are the getLen() bytes of data starting at offset, in the format
+   *   Field.serialize writes.  Lets a page decode one field without
+   *   parsing the rest of the page.
+   */
+    public abstract Field parse(byte[] data, int offset);
+
+  /**
+   * @return the big-endian int stored at data[offset], as written by
+   *   DataOutputStream.writeInt.
+   */
+    public static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+            | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
 }
@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * WaitForGraph records which transactions a blocked transaction is waiting
+ * for, and finds deadlocks as they form.  The graph is updated
+ * incrementally: a transaction adds its edges when it blocks and drops them
+ * once it is granted its lock, and a holder's edges are dropped as soon as it
+ * releases a page.  Because a deadlock can only appear when a new edge is
+ * added, it is enough to search for a cycle through the transaction that
+ * just blocked.
+ * <p>
+ * All methods synchronize on the graph.  LockManager calls in while holding
+ * a page's lock state, never the other way round.
+ */
+class WaitForGraph {
+
+    private HashMap<TransactionId, HashSet<TransactionId>> edges;
+    // the lock state each blocked transaction is waiting on
+    private HashMap<TransactionId, Object> waitingOn;
+    // victims that have been chosen but have not noticed yet
+    private HashSet<TransactionId> doomed;
+
+    WaitForGraph() {
+        edges = new HashMap<TransactionId, HashSet<TransactionId>>();
+        waitingOn = new HashMap<TransactionId, Object>();
+        doomed = new HashSet<TransactionId>();
+    }
+
+    /**
+     * Records that tid is blocked on the lock state on, waiting for holders,
+     * and checks whether that closes a cycle.
+     *
+     * @return the transaction chosen to abort if a deadlock was found, or null
+     */
+    synchronized TransactionId block(TransactionId tid, Set<TransactionId> holders, Object on) {
+        edges.put(tid, new HashSet<TransactionId>(holders));
+        waitingOn.put(tid, on);
+        ArrayList<TransactionId> cycle = new ArrayList<TransactionId>();
+        if (!findCycle(tid, tid, new HashSet<TransactionId>(), cycle))
+            return null;
+        TransactionId victim = youngest(cycle);
+        doomed.add(victim);
+        return victim;
+    }
+
+    /** Drops the edges of a transaction that is no longer blocked. */
+    synchronized void unblock(TransactionId tid) {
+        edges.remove(tid);
+        waitingOn.remove(tid);
+    }
+
+    /** Drops the edge waiter -> holder once holder released the page. */
+    synchronized void removeEdge(TransactionId waiter, TransactionId holder) {
+        HashSet<TransactionId> out = edges.get(waiter);
+        if (out != null)
+            out.remove(holder);
+    }
+
+    /** Return true if tid was chosen as a deadlock victim */
+    synchronized boolean isDoomed(TransactionId tid) {
+        return doomed.contains(tid);
+    }
+
+    /** Returns the lock state tid is blocked on, or null. */
+    synchronized Object waitingOn(TransactionId tid) {
+        return waitingOn.get(tid);
+    }
+
+    /** Forgets everything about a completed transaction. */
+    synchronized void remove(TransactionId tid) {
+        edges.remove(tid);
+        waitingOn.remove(tid);
+        doomed.remove(tid);
+    }
+
+    /**
+     * Depth-first search for a path from node back to start.  Doomed
+     * transactions are about to release their locks, so cycles through them
+     * are already being broken and are not reported again.
+     */
+    private boolean findCycle(TransactionId start, TransactionId node,
+                              HashSet<TransactionId> visited, ArrayList<TransactionId> path) {
+        path.add(node);
+        visited.add(node);
+        HashSet<TransactionId> out = edges.get(node);
+        if (out != null) {
+            Iterator<TransactionId> it = out.iterator();
+            while (it.hasNext()) {
+                TransactionId next = it.next();
+                if (doomed.contains(next))
+                    continue;
+                if (next.equals(start))
+                    return true;
+                if (!visited.contains(next) && findCycle(start, next, visited, path))
+                    return true;
+            }
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    /** The youngest transaction has done the least work, so it is the cheapest to abort. */
+    private TransactionId youngest(ArrayList<TransactionId> cycle) {
+        TransactionId victim = cycle.get(0);
+        for (int i = 1; i < cycle.size(); i++)
+            if (cycle.get(i).getId() > victim.getId())
+                victim = cycle.get(i);
+        return victim;
+    }
+}